@@ -21,6 +21,13 @@ dependencies {
     implementation("commons-io:commons-io:2.15.0")
     implementation("net.imglib2:imglib2-realtransform:4.0.4")
     implementation("qupath.ext.warpy:qupath-extension-warpy:0.5.0")
+
+    testImplementation("org.junit.jupiter:junit-jupiter:5.11.4")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+}
+
+tasks.test {
+    useJUnitPlatform()
 }
 
 publishing {
@@ -41,9 +41,10 @@ public class ABBAExtension implements QuPathExtension, GitHubProject {
 
 
         var actionLoadAtlasRois = ActionTools.createAction(new LoadAtlasRoisToQuPathCommand(qupath), "Load Atlas Annotations into Open Image");
+        var actionLoadAtlasRoisProject = ActionTools.createAction(new LoadAtlasRoisToProjectCommand(qupath), "Load Atlas Annotations into Project");
 
         MenuTools.addMenuItems(qupath.getMenu("Extensions", false),
-                MenuTools.createMenu("ABBA",actionLoadAtlasRois)
+                MenuTools.createMenu("ABBA",actionLoadAtlasRois, actionLoadAtlasRoisProject)
         );
 
         SCRIPTS.entrySet().forEach(entry -> {
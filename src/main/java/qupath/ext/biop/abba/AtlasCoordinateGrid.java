@@ -0,0 +1,175 @@
+package qupath.ext.biop.abba;
+
+import net.imglib2.realtransform.RealTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.stream.IntStream;
+
+/**
+ * Approximation of a pixel to atlas transform by a regular grid of samples, interpolated bilinearly.<br>
+ * Inverting an ABBA transform is iterative and expensive for each point. The grid samples the exact
+ * transform once per image, then answers each query with a few multiplications.
+ * The grid is refined (its spacing halved) until the error measured at the center of each cell
+ * is below the requested tolerance, or until the grid reaches {@link #MAX_NODES} nodes.
+ */
+public class AtlasCoordinateGrid {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasCoordinateGrid.class);
+
+    /**
+     * Microns per atlas unit: ABBA atlas coordinates are in millimeters
+     */
+    public static final double DEFAULT_ATLAS_UNIT_MICRONS = 1000.0;
+
+    /**
+     * Maximal number of nodes of the grid, whatever the requested tolerance
+     */
+    public static final int MAX_NODES = 4_000_000;
+
+    private static final int INITIAL_CELLS = 16;
+
+    private final double spacing;
+    private final int nx;
+    private final int ny;
+    // Transformed coordinates of node (i, j) at index j * nx + i
+    private final double[] gridX;
+    private final double[] gridY;
+    private final double[] gridZ;
+    private final double maxErrorMicrons;
+
+    private AtlasCoordinateGrid(double spacing, int nx, int ny, double[] gridX, double[] gridY, double[] gridZ, double maxErrorMicrons) {
+        this.spacing = spacing;
+        this.nx = nx;
+        this.ny = ny;
+        this.gridX = gridX;
+        this.gridY = gridY;
+        this.gridZ = gridZ;
+        this.maxErrorMicrons = maxErrorMicrons;
+    }
+
+    /**
+     * See {@link #build(RealTransform, double, double, double, double)}, with atlas coordinates in millimeters.
+     */
+    public static AtlasCoordinateGrid build(RealTransform pixelToAtlas, double width, double height, double toleranceMicrons) {
+        return build(pixelToAtlas, width, height, toleranceMicrons, DEFAULT_ATLAS_UNIT_MICRONS);
+    }
+
+    /**
+     * Samples a pixel to atlas transform over an image, refining the grid until the requested tolerance is met.
+     * @param pixelToAtlas the exact transform from the image pixels to the atlas coordinates
+     * @param width the width of the image, in pixels
+     * @param height the height of the image, in pixels
+     * @param toleranceMicrons the maximal interpolation error, in microns
+     * @param atlasUnitMicrons the number of microns per atlas coordinate unit
+     * @return the sampled grid; see {@link #getMaxErrorMicrons()} for the achieved error
+     */
+    public static AtlasCoordinateGrid build(RealTransform pixelToAtlas, double width, double height, double toleranceMicrons, double atlasUnitMicrons) {
+        long start = System.nanoTime();
+        double spacing = Math.max(width, height) / INITIAL_CELLS;
+        while (true) {
+            int nx = (int) Math.ceil(width / spacing) + 1;
+            int ny = (int) Math.ceil(height / spacing) + 1;
+            double[] gridX = new double[nx * ny];
+            double[] gridY = new double[nx * ny];
+            double[] gridZ = new double[nx * ny];
+            double finalSpacing = spacing;
+            IntStream.range(0, ny).parallel().forEach(j -> {
+                RealTransform transform = pixelToAtlas.copy();
+                double[] source = new double[3];
+                double[] target = new double[3];
+                for (int i = 0; i < nx; i++) {
+                    source[0] = i * finalSpacing;
+                    source[1] = j * finalSpacing;
+                    transform.apply(source, target);
+                    gridX[j * nx + i] = target[0];
+                    gridY[j * nx + i] = target[1];
+                    gridZ[j * nx + i] = target[2];
+                }
+            });
+            AtlasCoordinateGrid grid = new AtlasCoordinateGrid(spacing, nx, ny, gridX, gridY, gridZ, Double.NaN);
+            double error = grid.measureError(pixelToAtlas) * atlasUnitMicrons;
+            boolean finer = (long) (2 * nx - 1) * (2 * ny - 1) <= MAX_NODES;
+            if ((error <= toleranceMicrons) || !finer) {
+                if (error > toleranceMicrons)
+                    logger.warn("Atlas coordinate grid: tolerance of {} um not reached, max error {} um", toleranceMicrons, error);
+                logger.info("Atlas coordinate grid of {}x{} nodes (spacing {} px), max error {} um, built in {} ms",
+                        nx, ny, spacing, error, (System.nanoTime() - start) / 1e6);
+                return new AtlasCoordinateGrid(spacing, nx, ny, gridX, gridY, gridZ, error);
+            }
+            spacing /= 2;
+        }
+    }
+
+    /**
+     * @return the largest distance, in atlas units, between the exact and the interpolated transform at the cell centers
+     */
+    private double measureError(RealTransform pixelToAtlas) {
+        return IntStream.range(0, ny - 1).parallel().mapToDouble(j -> {
+            RealTransform transform = pixelToAtlas.copy();
+            double[] source = new double[3];
+            double[] exact = new double[3];
+            double[] interpolated = new double[3];
+            double maxError = 0;
+            for (int i = 0; i < nx - 1; i++) {
+                source[0] = (i + 0.5) * spacing;
+                source[1] = (j + 0.5) * spacing;
+                if (!apply(source[0], source[1], interpolated))
+                    continue; // Outside of the domain of the transform
+                transform.apply(source, exact);
+                double dx = exact[0] - interpolated[0];
+                double dy = exact[1] - interpolated[1];
+                double dz = exact[2] - interpolated[2];
+                double error = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                if (error > maxError) // NaN errors are ignored
+                    maxError = error;
+            }
+            return maxError;
+        }).max().orElse(0);
+    }
+
+    /**
+     * Interpolates the atlas coordinates of a pixel.
+     * @param x the x coordinate of the pixel
+     * @param y the y coordinate of the pixel
+     * @param target the array receiving the 3 atlas coordinates
+     * @return false if the pixel is outside of the grid or next to a node where the transform is undefined,
+     * in which case the exact transform should be used
+     */
+    public boolean apply(double x, double y, double[] target) {
+        double fx = x / spacing;
+        double fy = y / spacing;
+        if (!(fx >= 0 && fy >= 0 && fx <= nx - 1 && fy <= ny - 1))
+            return false;
+        int i = Math.min((int) fx, nx - 2);
+        int j = Math.min((int) fy, ny - 2);
+        double tx = fx - i;
+        double ty = fy - j;
+        int i00 = j * nx + i;
+        int i10 = i00 + 1;
+        int i01 = i00 + nx;
+        int i11 = i01 + 1;
+        double w00 = (1 - tx) * (1 - ty);
+        double w10 = tx * (1 - ty);
+        double w01 = (1 - tx) * ty;
+        double w11 = tx * ty;
+        target[0] = w00 * gridX[i00] + w10 * gridX[i10] + w01 * gridX[i01] + w11 * gridX[i11];
+        target[1] = w00 * gridY[i00] + w10 * gridY[i10] + w01 * gridY[i01] + w11 * gridY[i11];
+        target[2] = w00 * gridZ[i00] + w10 * gridZ[i10] + w01 * gridZ[i01] + w11 * gridZ[i11];
+        return !(Double.isNaN(target[0]) || Double.isNaN(target[1]) || Double.isNaN(target[2]));
+    }
+
+    /**
+     * @return the largest interpolation error measured when building the grid, in microns
+     */
+    public double getMaxErrorMicrons() {
+        return maxErrorMicrons;
+    }
+
+    /**
+     * @return the distance between two nodes of the grid, in pixels
+     */
+    public double getSpacing() {
+        return spacing;
+    }
+}
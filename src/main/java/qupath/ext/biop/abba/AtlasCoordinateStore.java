@@ -0,0 +1,323 @@
+package qupath.ext.biop.abba;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Columnar store of the atlas coordinates and region ids of objects, keyed by object UUID.<br>
+ * Three named measurements per cell weigh much more than three floats: the store keeps the coordinates in
+ * primitive float columns, optionally off-heap (direct buffers), and is persisted in the entry folder as
+ * 'ABBA-Coordinates-[name].bin'. Measurements are only written on the objects on demand,
+ * see {@link #addMeasurements(Collection)}.
+ * The file holds a header (magic, version, number of objects, flags), then the UUID, x, y, z and region id columns,
+ * then the names of the coordinate measurements.
+ */
+public class AtlasCoordinateStore {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasCoordinateStore.class);
+
+    private static final long MAGIC = 0x41424241434F4F52L; // "ABBACOOR"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8 + 4 + 4 + 4;
+    private static final int FLAG_REGIONS = 1;
+
+    public static final int NO_REGION = 0;
+
+    private final int size;
+    private final LongBuffer uuids; // Most then least significant bits of each UUID
+    private final FloatBuffer x;
+    private final FloatBuffer y;
+    private final FloatBuffer z;
+    private final IntBuffer regionIds;
+    private final ByteBuffer[] columns; // Bytes of the uuid, x, y, z and region id columns, in the byte order of the file
+    private boolean hasRegions = false;
+    private String[] measurementNames = {AtlasCoordinates.MEASUREMENT_X, AtlasCoordinates.MEASUREMENT_Y, AtlasCoordinates.MEASUREMENT_Z};
+    private volatile Map<UUID, Integer> indexOfUUID;
+
+    private AtlasCoordinateStore(int size, boolean offHeap) {
+        this.size = size;
+        this.columns = new ByteBuffer[]{
+                allocate(2L * size * Long.BYTES, offHeap),
+                allocate((long) size * Float.BYTES, offHeap),
+                allocate((long) size * Float.BYTES, offHeap),
+                allocate((long) size * Float.BYTES, offHeap),
+                allocate((long) size * Integer.BYTES, offHeap)
+        };
+        this.uuids = columns[0].asLongBuffer();
+        this.x = columns[1].asFloatBuffer();
+        this.y = columns[2].asFloatBuffer();
+        this.z = columns[3].asFloatBuffer();
+        this.regionIds = columns[4].asIntBuffer();
+    }
+
+    private static ByteBuffer allocate(long bytes, boolean offHeap) {
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many objects for an atlas coordinate store");
+        // The columns are kept in the byte order of the file, so that they are read and written without a copy
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect((int) bytes) : ByteBuffer.allocate((int) bytes);
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static long getColumnBytes(int size, boolean hasRegions) {
+        return (long) size * (2 * Long.BYTES + 3 * Float.BYTES + (hasRegions ? Integer.BYTES : 0));
+    }
+
+    /**
+     * Stores computed atlas coordinates, as floats.
+     * @param coordinates the atlas coordinates of objects
+     * @param offHeap whether to store the columns outside of the Java heap
+     * @return the store
+     */
+    public static AtlasCoordinateStore of(AtlasCoordinates coordinates, boolean offHeap) {
+        List<PathObject> objects = coordinates.getObjects();
+        AtlasCoordinateStore store = new AtlasCoordinateStore(objects.size(), offHeap);
+        double[] cx = coordinates.getX();
+        double[] cy = coordinates.getY();
+        double[] cz = coordinates.getZ();
+        for (int i = 0; i < store.size; i++) {
+            UUID id = objects.get(i).getID();
+            store.uuids.put(2 * i, id.getMostSignificantBits());
+            store.uuids.put(2 * i + 1, id.getLeastSignificantBits());
+            store.x.put(i, (float) cx[i]);
+            store.y.put(i, (float) cy[i]);
+            store.z.put(i, (float) cz[i]);
+        }
+        return store;
+    }
+
+    /**
+     * Sets the atlas region of each object, e.g. from {@link AtlasLabelVolume#getLabels(double[], double[], double[])}
+     * @param ids the ontology id of the region of each object, in the order of the store, {@link #NO_REGION} if none
+     */
+    public void setRegionIds(int[] ids) {
+        if (ids.length != size)
+            throw new IllegalArgumentException("Expected " + size + " region ids, got " + ids.length);
+        regionIds.put(0, ids);
+        hasRegions = true;
+    }
+
+    /**
+     * Sets the names of the coordinate measurements written by {@link #addMeasurements(Collection)}, which are saved with the store.
+     * By default, {@link AtlasCoordinates#MEASUREMENT_X}, {@link AtlasCoordinates#MEASUREMENT_Y} and {@link AtlasCoordinates#MEASUREMENT_Z}.
+     * @param nameX the name of the X coordinate measurement
+     * @param nameY the name of the Y coordinate measurement
+     * @param nameZ the name of the Z coordinate measurement
+     */
+    public void setMeasurementNames(String nameX, String nameY, String nameZ) {
+        this.measurementNames = new String[]{nameX, nameY, nameZ};
+    }
+
+    /**
+     * @return the names of the X, Y and Z coordinate measurements
+     */
+    public List<String> getMeasurementNames() {
+        return List.of(measurementNames);
+    }
+
+    /**
+     * @param entry a project entry
+     * @param name the name of the store, usually the registration name
+     * @return the path of the store in the folder of the entry
+     */
+    public static Path getPath(ProjectImageEntry<?> entry, String name) {
+        return entry.getEntryPath().resolve("ABBA-Coordinates-" + name + ".bin");
+    }
+
+    /**
+     * Writes the store to a file
+     * @param path the file to write, usually {@link #getPath(ProjectImageEntry, String)}
+     * @throws IOException if the file can't be written
+     */
+    public void write(Path path) throws IOException {
+        long start = System.nanoTime();
+        // Written to a temporary file first, so that a failed write does not destroy the previous store
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putLong(MAGIC).putInt(VERSION).putInt(size).putInt(hasRegions ? FLAG_REGIONS : 0).flip();
+                writeFully(channel, header);
+                for (int i = 0; i < (hasRegions ? 5 : 4); i++)
+                    writeFully(channel, columns[i].duplicate().clear());
+                for (String name : measurementNames) {
+                    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    writeFully(channel, ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes).flip());
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        logger.info("Atlas coordinates of {} objects written to {} in {} ms", size, path, (System.nanoTime() - start) / 1e6);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Unexpected end of atlas coordinate store");
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads a store written by {@link #write(Path)}
+     * @param path the file to read
+     * @param offHeap whether to store the columns outside of the Java heap
+     * @return the store
+     * @throws IOException if the file can't be read or is not an atlas coordinate store
+     */
+    public static AtlasCoordinateStore read(Path path, boolean offHeap) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header);
+            if (header.getLong() != MAGIC)
+                throw new IOException(path + " is not an atlas coordinate store");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported atlas coordinate store version " + version + " in " + path);
+            int size = header.getInt();
+            int flags = header.getInt();
+            boolean hasRegions = (flags & FLAG_REGIONS) != 0;
+            if ((size < 0) || (channel.size() - channel.position() < getColumnBytes(size, hasRegions)))
+                throw new IOException("Truncated atlas coordinate store " + path);
+            AtlasCoordinateStore store = new AtlasCoordinateStore(size, offHeap);
+            for (int i = 0; i < (hasRegions ? 5 : 4); i++)
+                readFully(channel, store.columns[i].duplicate().clear());
+            store.hasRegions = hasRegions;
+            for (int i = 0; i < store.measurementNames.length; i++) {
+                ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+                readFully(channel, length);
+                int nBytes = length.getInt();
+                if ((nBytes < 0) || (nBytes > channel.size() - channel.position()))
+                    throw new IOException("Corrupt measurement name in atlas coordinate store " + path);
+                ByteBuffer name = ByteBuffer.allocate(nBytes);
+                readFully(channel, name);
+                store.measurementNames[i] = StandardCharsets.UTF_8.decode(name).toString();
+            }
+            return store;
+        }
+    }
+
+    private Map<UUID, Integer> getIndex() {
+        Map<UUID, Integer> index = indexOfUUID;
+        if (index == null) {
+            index = new HashMap<>(size * 2);
+            for (int i = 0; i < size; i++)
+                index.put(new UUID(uuids.get(2 * i), uuids.get(2 * i + 1)), i);
+            indexOfUUID = index;
+        }
+        return index;
+    }
+
+    /**
+     * @param object an object
+     * @return the position of the object in the store, or -1 if it is not stored
+     */
+    public int indexOf(PathObject object) {
+        Integer index = getIndex().get(object.getID());
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the number of stored objects
+     */
+    public int size() {
+        return size;
+    }
+
+    public float getX(int index) {
+        return x.get(index);
+    }
+
+    public float getY(int index) {
+        return y.get(index);
+    }
+
+    public float getZ(int index) {
+        return z.get(index);
+    }
+
+    /**
+     * @param index the position of an object in the store
+     * @return the ontology id of the region of the object, {@link #NO_REGION} if it has none or if no region is stored
+     */
+    public int getRegionId(int index) {
+        return hasRegions ? regionIds.get(index) : NO_REGION;
+    }
+
+    /**
+     * Writes the stored coordinates as measurements of objects, for display or export, named as set by
+     * {@link #setMeasurementNames(String, String, String)}, with the region id as {@link AtlasLabelMap#MEASUREMENT_REGION_ID} if stored.
+     * @param objects the objects, e.g. the selected ones; objects which are not stored are ignored
+     * @return the number of objects found in the store
+     */
+    public int addMeasurements(Collection<PathObject> objects) {
+        return addMeasurements(objects, measurementNames[0], measurementNames[1], measurementNames[2]);
+    }
+
+    /**
+     * Writes the stored coordinates as measurements of objects, with the region id as {@link AtlasLabelMap#MEASUREMENT_REGION_ID} if stored.
+     * @param objects the objects; objects which are not stored are ignored
+     * @param nameX the name of the X coordinate measurement
+     * @param nameY the name of the Y coordinate measurement
+     * @param nameZ the name of the Z coordinate measurement
+     * @return the number of objects found in the store
+     */
+    public int addMeasurements(Collection<PathObject> objects, String nameX, String nameY, String nameZ) {
+        Map<UUID, Integer> index = getIndex();
+        int nFound = 0;
+        for (PathObject object : objects) {
+            Integer i = index.get(object.getID());
+            if (i == null)
+                continue;
+            MeasurementList ml = object.getMeasurementList();
+            ml.put(nameX, x.get(i));
+            ml.put(nameY, y.get(i));
+            ml.put(nameZ, z.get(i));
+            if (hasRegions)
+                ml.put(AtlasLabelMap.MEASUREMENT_REGION_ID, regionIds.get(i) == NO_REGION ? Double.NaN : regionIds.get(i));
+            nFound++;
+        }
+        return nFound;
+    }
+
+    /**
+     * Removes the measurements written by {@link #addMeasurements(Collection)}, to release their memory
+     * @param objects the objects
+     */
+    public void removeMeasurements(Collection<PathObject> objects) {
+        List<String> names = List.of(measurementNames[0], measurementNames[1], measurementNames[2], AtlasLabelMap.MEASUREMENT_REGION_ID);
+        for (PathObject object : objects) {
+            MeasurementList ml = object.getMeasurementList();
+            for (String name : names)
+                ml.remove(name);
+        }
+    }
+}
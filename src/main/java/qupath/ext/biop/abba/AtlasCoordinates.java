@@ -0,0 +1,279 @@
+package qupath.ext.biop.abba;
+
+import net.imglib2.realtransform.RealTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Atlas coordinates of the centroids of a list of objects, stored as primitive arrays.<br>
+ * Coordinates are computed in parallel: the objects are split in chunks, each chunk being
+ * transformed by its own copy of the pixel to atlas transform with reused coordinate buffers.
+ * Optionally, the transform can be approximated by an {@link AtlasCoordinateGrid}, which is much faster
+ * than inverting the exact transform for each point. When the transform is affine, which is the case
+ * for registrations without spline step, it is collapsed into a single matrix applied to the primitive arrays.
+ */
+public class AtlasCoordinates {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasCoordinates.class);
+
+    public static final String MEASUREMENT_X = "Atlas_X";
+    public static final String MEASUREMENT_Y = "Atlas_Y";
+    public static final String MEASUREMENT_Z = "Atlas_Z";
+
+    private static final int MIN_CHUNK_SIZE = 4096;
+
+    // Relative tolerance of the affine test, far below the precision of a registration
+    private static final double AFFINE_TOLERANCE = 1e-9;
+
+    private final List<PathObject> objects;
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private long elapsedNanos;
+    private double maxErrorMicrons = 0;
+
+    private AtlasCoordinates(List<PathObject> objects) {
+        this.objects = objects;
+        int n = objects.size();
+        this.x = new double[n];
+        this.y = new double[n];
+        this.z = new double[n];
+    }
+
+    /**
+     * Transforms the centroids of the objects to the atlas.
+     * @param objects the objects, usually detections
+     * @param pixelToAtlas the transform from the image pixels to the atlas coordinates
+     * @return the atlas coordinates of the objects
+     */
+    public static AtlasCoordinates compute(Collection<PathObject> objects, RealTransform pixelToAtlas) {
+        return compute(objects, pixelToAtlas, null);
+    }
+
+    /**
+     * Transforms the centroids of the objects to the atlas, approximating the transform with a grid.
+     * Points where the grid is not defined are transformed exactly.
+     * @param objects the objects, usually detections
+     * @param pixelToAtlas the exact transform from the image pixels to the atlas coordinates
+     * @param grid the approximation of the transform, or null to transform all points exactly
+     * @return the atlas coordinates of the objects
+     */
+    public static AtlasCoordinates compute(Collection<PathObject> objects, RealTransform pixelToAtlas, AtlasCoordinateGrid grid) {
+        AtlasCoordinates coordinates = new AtlasCoordinates(new ArrayList<>(objects));
+        long start = System.nanoTime();
+        int n = coordinates.size();
+        double[] centroidsX = new double[n];
+        double[] centroidsY = new double[n];
+        coordinates.getCentroids(centroidsX, centroidsY);
+        int chunkSize = getChunkSize(n);
+        IntStream.range(0, (n + chunkSize - 1) / chunkSize).parallel().forEach(chunk -> {
+            RealTransform transform = pixelToAtlas.copy();
+            double[] source = new double[3];
+            double[] target = new double[3];
+            int end = Math.min(n, (chunk + 1) * chunkSize);
+            for (int i = chunk * chunkSize; i < end; i++) {
+                if ((grid == null) || !grid.apply(centroidsX[i], centroidsY[i], target)) {
+                    source[0] = centroidsX[i];
+                    source[1] = centroidsY[i];
+                    source[2] = 0;
+                    transform.apply(source, target);
+                }
+                coordinates.x[i] = target[0];
+                coordinates.y[i] = target[1];
+                coordinates.z[i] = target[2];
+            }
+        });
+        coordinates.elapsedNanos = System.nanoTime() - start;
+        if (grid != null)
+            coordinates.maxErrorMicrons = grid.getMaxErrorMicrons();
+        logger.info("Atlas coordinates of {} objects computed in {} ms", n, coordinates.getElapsedMillis());
+        return coordinates;
+    }
+
+    /**
+     * Transforms the centroids of the objects to the atlas with an affine transform.
+     * @param objects the objects, usually detections
+     * @param affine the affine coefficients, see {@link #getAffineCoefficients(RealTransform, double, double)}
+     * @return the atlas coordinates of the objects
+     */
+    public static AtlasCoordinates computeAffine(Collection<PathObject> objects, double[] affine) {
+        AtlasCoordinates coordinates = new AtlasCoordinates(new ArrayList<>(objects));
+        long start = System.nanoTime();
+        int n = coordinates.size();
+        double[] centroidsX = new double[n];
+        double[] centroidsY = new double[n];
+        coordinates.getCentroids(centroidsX, centroidsY);
+        int chunkSize = getChunkSize(n);
+        IntStream.range(0, (n + chunkSize - 1) / chunkSize).parallel().forEach(chunk ->
+                transformAffine(affine, centroidsX, centroidsY, coordinates.x, coordinates.y, coordinates.z,
+                        chunk * chunkSize, Math.min(n, (chunk + 1) * chunkSize))
+        );
+        coordinates.elapsedNanos = System.nanoTime() - start;
+        logger.info("Atlas coordinates of {} objects computed with an affine transform in {} ms", n, coordinates.getElapsedMillis());
+        return coordinates;
+    }
+
+    /**
+     * Applies an affine transform of the image plane (z = 0) to the atlas on primitive arrays.
+     * The loop has no branch nor allocation, so that the JIT compiler can vectorize it.
+     * @param affine the 9 affine coefficients: atlas x = affine[0] * x + affine[1] * y + affine[2], and so on for atlas y and z
+     * @param x the pixel x coordinates
+     * @param y the pixel y coordinates
+     * @param outX the array receiving the atlas x coordinates
+     * @param outY the array receiving the atlas y coordinates
+     * @param outZ the array receiving the atlas z coordinates
+     * @param from the first index to transform
+     * @param to the last index to transform, excluded
+     */
+    public static void transformAffine(double[] affine, double[] x, double[] y, double[] outX, double[] outY, double[] outZ, int from, int to) {
+        double a00 = affine[0], a01 = affine[1], a02 = affine[2];
+        double a10 = affine[3], a11 = affine[4], a12 = affine[5];
+        double a20 = affine[6], a21 = affine[7], a22 = affine[8];
+        for (int i = from; i < to; i++) {
+            double px = x[i];
+            double py = y[i];
+            outX[i] = a00 * px + a01 * py + a02;
+            outY[i] = a10 * px + a11 * py + a12;
+            outZ[i] = a20 * px + a21 * py + a22;
+        }
+    }
+
+    /**
+     * Tests whether a pixel to atlas transform is affine over an image, and returns its coefficients if so.<br>
+     * The transform is a sequence of a Warpy transform, whatever its implementation, and of the server rotation,
+     * so it is tested numerically: an affine map is fitted on three corners of the image, then checked
+     * on a grid of points covering the image.
+     * @param pixelToAtlas the transform from the image pixels to the atlas coordinates
+     * @param width the width of the image, in pixels
+     * @param height the height of the image, in pixels
+     * @return the 9 affine coefficients, see {@link #transformAffine}, or null if the transform is not affine
+     */
+    public static double[] getAffineCoefficients(RealTransform pixelToAtlas, double width, double height) {
+        RealTransform transform = pixelToAtlas.copy();
+        double[] origin = apply(transform, 0, 0);
+        double[] alongX = apply(transform, width, 0);
+        double[] alongY = apply(transform, 0, height);
+        double[] affine = new double[9];
+        for (int d = 0; d < 3; d++) {
+            affine[3 * d] = (alongX[d] - origin[d]) / width;
+            affine[3 * d + 1] = (alongY[d] - origin[d]) / height;
+            affine[3 * d + 2] = origin[d];
+        }
+        int nSamples = 9;
+        for (int j = 0; j <= nSamples; j++) {
+            for (int i = 0; i <= nSamples; i++) {
+                // Offsets avoid sampling only on a regular lattice
+                double px = width * (i + 0.37 * (j % 2)) / (nSamples + 1);
+                double py = height * (j + 0.61 * (i % 2)) / (nSamples + 1);
+                double[] exact = apply(transform, px, py);
+                for (int d = 0; d < 3; d++) {
+                    double expected = affine[3 * d] * px + affine[3 * d + 1] * py + affine[3 * d + 2];
+                    double tolerance = AFFINE_TOLERANCE * (1 + Math.abs(expected));
+                    if (!(Math.abs(exact[d] - expected) <= tolerance))
+                        return null; // Also false for NaN
+                }
+            }
+        }
+        return affine;
+    }
+
+    private static double[] apply(RealTransform transform, double x, double y) {
+        double[] target = new double[3];
+        transform.apply(new double[]{x, y, 0}, target);
+        return target;
+    }
+
+    private void getCentroids(double[] centroidsX, double[] centroidsY) {
+        IntStream.range(0, size()).parallel().forEach(i -> {
+            ROI roi = objects.get(i).getROI();
+            centroidsX[i] = roi.getCentroidX();
+            centroidsY[i] = roi.getCentroidY();
+        });
+    }
+
+    static int getChunkSize(int n) {
+        int nChunks = 4 * Runtime.getRuntime().availableProcessors();
+        return Math.max(MIN_CHUNK_SIZE, (n + nChunks - 1) / nChunks);
+    }
+
+    /**
+     * @return the number of objects
+     */
+    public int size() {
+        return objects.size();
+    }
+
+    /**
+     * @return the objects, in the order of the coordinate arrays
+     */
+    public List<PathObject> getObjects() {
+        return objects;
+    }
+
+    /**
+     * @return the atlas X coordinates; the array is not copied
+     */
+    public double[] getX() {
+        return x;
+    }
+
+    /**
+     * @return the atlas Y coordinates; the array is not copied
+     */
+    public double[] getY() {
+        return y;
+    }
+
+    /**
+     * @return the atlas Z coordinates; the array is not copied
+     */
+    public double[] getZ() {
+        return z;
+    }
+
+    /**
+     * @return the time spent computing the coordinates, in milliseconds
+     */
+    public double getElapsedMillis() {
+        return elapsedNanos / 1e6;
+    }
+
+    /**
+     * @return the largest error of the approximated transform measured when building the grid, in microns,
+     * or 0 if the coordinates are exact
+     */
+    public double getMaxErrorMicrons() {
+        return maxErrorMicrons;
+    }
+
+    /**
+     * Adds the coordinates as measurements of the objects, named {@link #MEASUREMENT_X},
+     * {@link #MEASUREMENT_Y} and {@link #MEASUREMENT_Z}
+     */
+    public void addMeasurements() {
+        addMeasurements(MEASUREMENT_X, MEASUREMENT_Y, MEASUREMENT_Z);
+    }
+
+    /**
+     * Adds the coordinates as measurements of the objects
+     * @param nameX the name of the X coordinate measurement
+     * @param nameY the name of the Y coordinate measurement
+     * @param nameZ the name of the Z coordinate measurement
+     */
+    public void addMeasurements(String nameX, String nameY, String nameZ) {
+        IntStream.range(0, size()).parallel().forEach(i -> {
+            MeasurementList ml = objects.get(i).getMeasurementList();
+            ml.put(nameX, x[i]);
+            ml.put(nameY, y[i]);
+            ml.put(nameZ, z[i]);
+        });
+    }
+}
@@ -0,0 +1,201 @@
+package qupath.ext.biop.abba;
+
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.geom.AffineTransform;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * On-disk cache of the converted atlas regions of an image, stored in the entry folder as 'ABBA-GeometryCache-[roiset].bin'.<br>
+ * Importing an atlas decodes the RoiSet, converts each ROI, applies the server rotation and splits the hemispheres;
+ * the cache holds the result of all of this as WKB geometries, so that a second import only parses them.
+ * The cache is keyed by a hash of the RoiSet content (the CRC and size of its entries), of the rotation,
+ * of the split flag, of the ontology name and of the leaf regions mode: it stays valid when the project is moved to another machine,
+ * and is ignored as soon as one of them changes. Names, classes and colors are not cached, since they depend
+ * on the naming property: they are set from the ontology when the regions are read.<br>
+ * File layout: magic, version, key, number of regions, then an index (id, side, fingerprint, WKB length) and the WKB blobs.
+ */
+public class AtlasGeometryCache {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasGeometryCache.class);
+
+    private static final int MAGIC = 0x41424247; // "ABBG"
+    private static final int VERSION = 1;
+
+    /**
+     * A region read from the cache
+     */
+    public static class CachedRegion {
+        final int id;
+        final int side;
+        final String fingerprint;
+        final ROI roi;
+
+        CachedRegion(int id, int side, String fingerprint, ROI roi) {
+            this.id = id;
+            this.side = side;
+            this.fingerprint = fingerprint;
+            this.roi = roi;
+        }
+    }
+
+    /**
+     * @param entry a project entry
+     * @param roisetName the name of the registration
+     * @return the path of the geometry cache in the folder of the entry
+     */
+    public static Path getPath(ProjectImageEntry<?> entry, String roisetName) {
+        return entry.getEntryPath().resolve("ABBA-GeometryCache-" + roisetName + ".bin");
+    }
+
+    /**
+     * Computes the key of the converted regions of a RoiSet.
+     * @param roisetFile the RoiSet
+     * @param transform the rotation of the image server, or null
+     * @param splitLeftRight whether the regions are split between hemispheres
+     * @param ontologyName the name of the atlas ontology
+     * @param leafRegionsOnly whether only the leaf regions are converted, see {@link AtlasImportOptions.ParentRegions}
+     * @return the key, or null if the RoiSet can't be read
+     */
+    public static String computeKey(File roisetFile, AffineTransform transform, boolean splitLeftRight, String ontologyName, boolean leafRegionsOnly) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * 2);
+            for (ZipEntry entry : RoiSetLoader.listRoiEntries(roisetFile)) {
+                digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+                digest.update(buffer.clear().putLong(entry.getCrc()).putLong(entry.getSize()).flip());
+            }
+            double[] matrix = new double[6];
+            (transform == null ? new AffineTransform() : transform).getMatrix(matrix);
+            for (double value : matrix)
+                digest.update(buffer.clear().putDouble(value).flip());
+            digest.update((byte) ((splitLeftRight ? 1 : 0) | (leafRegionsOnly ? 2 : 0)));
+            digest.update(ontologyName.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException e) {
+            logger.warn("Could not read {}", roisetFile, e);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads cached regions.
+     * @param path the cache file
+     * @param key the expected key, see {@link #computeKey(File, AffineTransform, boolean, String, boolean)}
+     * @return the cached regions, or null if there is no cache or if it has been built for another key
+     */
+    public static List<CachedRegion> read(Path path, String key) {
+        if (key == null || !Files.exists(path))
+            return null;
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                logger.debug("Geometry cache {} is outdated", path);
+                return null;
+            }
+            int n = in.readInt();
+            int[] ids = new int[n];
+            int[] sides = new int[n];
+            String[] fingerprints = new String[n];
+            byte[][] wkbs = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                ids[i] = in.readInt();
+                sides[i] = in.readByte();
+                fingerprints[i] = in.readUTF();
+                wkbs[i] = new byte[in.readInt()];
+            }
+            for (int i = 0; i < n; i++)
+                in.readFully(wkbs[i]);
+            // WKB readers are not thread-safe: one reader per region, they are cheap
+            List<CachedRegion> regions = IntStream.range(0, n).parallel().mapToObj(i -> {
+                try {
+                    ROI roi = GeometryTools.geometryToROI(new WKBReader().read(wkbs[i]), ImagePlane.getDefaultPlane());
+                    return new CachedRegion(ids[i], sides[i], fingerprints[i], roi);
+                } catch (ParseException e) {
+                    throw new UncheckedIOException(new IOException(e));
+                }
+            }).toList();
+            logger.info("{} atlas regions read from geometry cache {} in {} ms", n, path.getFileName(), (System.nanoTime() - start) / 1e6);
+            return regions;
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Could not read geometry cache {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes converted regions to the cache. The file is written next to the cache and then moved,
+     * so that a concurrent reader never sees a partial cache.
+     * @param path the cache file
+     * @param key the key of the regions, see {@link #computeKey(File, AffineTransform, boolean, String, boolean)}
+     * @param regions the converted atlas regions, with their 'ID' measurement and geometry fingerprint
+     */
+    public static void write(Path path, String key, List<PathObject> regions) {
+        if (key == null)
+            return;
+        long start = System.nanoTime();
+        List<PathObject> cachedRegions = new ArrayList<>();
+        for (PathObject region : regions) {
+            if (region.hasROI() && region.getMeasurementList().containsKey("ID") && region.getMetadata().containsKey(AtlasTools.METADATA_FINGERPRINT))
+                cachedRegions.add(region);
+        }
+        byte[][] wkbs = cachedRegions.parallelStream()
+                .map(region -> new WKBWriter().write(region.getROI().getGeometry()))
+                .toArray(byte[][]::new);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(cachedRegions.size());
+                for (int i = 0; i < cachedRegions.size(); i++) {
+                    PathObject region = cachedRegions.get(i);
+                    out.writeInt((int) region.getMeasurementList().get("ID"));
+                    out.writeByte(AtlasLabelMap.getSide(region.getPathClass()));
+                    out.writeUTF(region.getMetadata().get(AtlasTools.METADATA_FINGERPRINT));
+                    out.writeInt(wkbs[i].length);
+                }
+                for (byte[] wkb : wkbs)
+                    out.write(wkb);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            logger.info("{} atlas regions written to geometry cache {} in {} ms", cachedRegions.size(), path.getFileName(), (System.nanoTime() - start) / 1e6);
+        } catch (IOException e) {
+            logger.warn("Could not write geometry cache {}", path, e);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package qupath.ext.biop.abba;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.RotatedImageServer;
+
+import java.awt.geom.AffineTransform;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+
+/**
+ * Geometry of an image with respect to the unrotated image registered in ABBA: the rotations of its nested
+ * server builders, its dimensions, and the transform from the unrotated image, both as an AWT {@link AffineTransform}
+ * (to convert the RoiSets) and as an {@link AffineTransform3D} (to compose with the ABBA transformation).<br>
+ * Walking the server builders needs reflection: the fields read are resolved once per builder class as {@link VarHandle}s,
+ * and the context is computed once per image. It is computed again if the server builder or the dimensions of the image change.
+ * Contexts are weakly referenced by their image data, so they don't keep closed images in memory.
+ */
+public class AtlasGeometryContext {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasGeometryContext.class);
+
+    private static final Map<ImageData<?>, AtlasGeometryContext> contexts = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Handles of the 'builder' and 'rotation' fields of a server builder class, null if the class has no such field
+     */
+    private static class BuilderFields {
+        final VarHandle builder;
+        final VarHandle rotation;
+
+        BuilderFields(Class<?> type) {
+            this.builder = findField(type, "builder", ImageServerBuilder.ServerBuilder.class);
+            this.rotation = findField(type, "rotation", RotatedImageServer.Rotation.class);
+        }
+
+        private static VarHandle findField(Class<?> type, String name, Class<?> fieldType) {
+            try {
+                Field field = type.getDeclaredField(name);
+                if (!fieldType.isAssignableFrom(field.getType()))
+                    return null;
+                field.setAccessible(true);
+                return MethodHandles.lookup().unreflectVarHandle(field);
+            } catch (NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final ClassValue<BuilderFields> builderFields = new ClassValue<>() {
+        @Override
+        protected BuilderFields computeValue(Class<?> type) {
+            return new BuilderFields(type);
+        }
+    };
+
+    private final ImageServerBuilder.ServerBuilder<?> serverBuilder;
+    private final List<ImageServerBuilder.ServerBuilder<?>> builders;
+    private final List<RotatedImageServer.Rotation> rotations;
+    private final int width;
+    private final int height;
+    private final AffineTransform transform;
+    private final AffineTransform3D transform3D;
+
+    private AtlasGeometryContext(ImageData<?> imageData) {
+        this.serverBuilder = imageData.getServerBuilder();
+        ImageServerMetadata metadata = imageData.getServerMetadata();
+        this.width = metadata.getWidth();
+        this.height = metadata.getHeight();
+
+        List<ImageServerBuilder.ServerBuilder<?>> builders = new ArrayList<>();
+        Optional<ImageServerBuilder.ServerBuilder<?>> builder = Optional.ofNullable(serverBuilder);
+        while (builder.isPresent()) {
+            builders.add(builder.get());
+            builder = getWrappedBuilder(builder.get());
+        }
+        this.builders = List.copyOf(builders.reversed()); // the order is from the innermost server to the outermost
+
+        List<RotatedImageServer.Rotation> rotations = new ArrayList<>();
+        RotatedImageServer.Rotation rotation = RotatedImageServer.Rotation.ROTATE_NONE;
+        for (ImageServerBuilder.ServerBuilder<?> b : this.builders) {
+            Optional<RotatedImageServer.Rotation> r = getRotation(b);
+            if (r.isEmpty())
+                // the server is not rotated
+                continue;
+            rotations.add(r.get());
+            if (r.get() != RotatedImageServer.Rotation.ROTATE_NONE)
+                rotation = r.get(); // The outermost rotation is the one applied to the unrotated image
+        }
+        this.rotations = List.copyOf(rotations);
+
+        AffineTransform3D transform3D = new AffineTransform3D();
+        AffineTransform transform = null;
+        switch (rotation) {
+            case ROTATE_NONE: // No rotation.
+                break;
+            case ROTATE_90: // Rotate 90 degrees clockwise.
+                transform = AffineTransform.getRotateInstance(Math.PI/2.0);
+                transform.translate(0, -width);
+                transform3D.set(new double[]{
+                        0.0,-1.0, 0.0, width,
+                        1.0, 0.0, 0.0, 0.0,
+                        0.0, 0.0, 1.0, 0.0
+                });
+                break;
+            case ROTATE_180: // Rotate 180 degrees.
+                transform = AffineTransform.getRotateInstance(Math.PI);
+                transform.translate(-width, -height);
+                transform3D.set(new double[]{
+                       -1.0, 0.0, 0.0, width,
+                        0.0,-1.0, 0.0, height,
+                        0.0, 0.0, 1.0, 0.0
+                });
+                break;
+            case ROTATE_270: // Rotate 270 degrees
+                transform = AffineTransform.getRotateInstance(Math.PI*3.0/2.0);
+                transform.translate(-height, 0);
+                transform3D.set(new double[]{
+                        0.0, 1.0, 0.0, 0.0,
+                       -1.0, 0.0, 0.0, height,
+                        0.0, 0.0, 1.0, 0.0
+                });
+                break;
+            default:
+                logger.warn("Unknown rotation for rotated image server: {}", rotation);
+        }
+        this.transform = transform;
+        this.transform3D = transform3D;
+    }
+
+    /**
+     * @param imageData the data of an image
+     * @return the geometry context of the image, computed on the first call
+     */
+    public static AtlasGeometryContext of(ImageData<?> imageData) {
+        AtlasGeometryContext context = contexts.get(imageData);
+        if ((context == null) || !context.isValidFor(imageData)) {
+            context = new AtlasGeometryContext(imageData);
+            contexts.put(imageData, context);
+        }
+        return context;
+    }
+
+    private boolean isValidFor(ImageData<?> imageData) {
+        ImageServerMetadata metadata = imageData.getServerMetadata();
+        return (imageData.getServerBuilder() == serverBuilder) && (metadata.getWidth() == width) && (metadata.getHeight() == height);
+    }
+
+    static Optional<RotatedImageServer.Rotation> getRotation(ImageServerBuilder.ServerBuilder<?> serverBuilder) {
+        VarHandle handle = builderFields.get(serverBuilder.getClass()).rotation;
+        return handle == null ? Optional.empty() : Optional.ofNullable((RotatedImageServer.Rotation) handle.get(serverBuilder));
+    }
+
+    static Optional<ImageServerBuilder.ServerBuilder<?>> getWrappedBuilder(ImageServerBuilder.ServerBuilder<?> serverBuilder) {
+        VarHandle handle = builderFields.get(serverBuilder.getClass()).builder;
+        return handle == null ? Optional.empty() : Optional.ofNullable((ImageServerBuilder.ServerBuilder<?>) handle.get(serverBuilder));
+    }
+
+    /**
+     * @return the nested server builders of the image, from the innermost server to the outermost
+     */
+    public List<ImageServerBuilder.ServerBuilder<?>> getBuilders() {
+        return builders;
+    }
+
+    /**
+     * @return the rotations of the rotated servers of the image, from the innermost server to the outermost
+     */
+    public List<RotatedImageServer.Rotation> getRotations() {
+        return rotations;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return a copy of the transform from the unrotated image to the image, or null if the image is not rotated
+     */
+    public AffineTransform getTransform() {
+        return transform == null ? null : new AffineTransform(transform);
+    }
+
+    /**
+     * @return a copy of the transform from the unrotated image to the image, the identity if the image is not rotated
+     */
+    public AffineTransform3D getTransform3D() {
+        return transform3D.copy();
+    }
+}
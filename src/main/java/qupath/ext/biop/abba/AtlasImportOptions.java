@@ -0,0 +1,169 @@
+package qupath.ext.biop.abba;
+
+/**
+ * Options of the import of the atlas regions in an image, see
+ * {@link AtlasTools#loadWarpedAtlasAnnotations(qupath.ext.biop.abba.struct.AtlasOntology, qupath.lib.images.ImageData, qupath.lib.projects.ProjectImageEntry, String, AtlasImportOptions)}.
+ * Setters return the options, so that they can be chained.
+ */
+public class AtlasImportOptions {
+
+    /**
+     * Downsample of the label map used to assign the detections to the regions in bulk mode
+     */
+    public static final double DEFAULT_LABEL_MAP_DOWNSAMPLE = 8;
+
+    /**
+     * How the parent regions of the ontology (e.g. 'root', 'grey', 'CH') are imported
+     */
+    public enum ParentRegions {
+        /**
+         * Parent regions are decoded from the RoiSet, as the leaf regions
+         */
+        DECODED,
+        /**
+         * Only the leaf regions are decoded, the geometry of a parent region is the union of its children
+         */
+        UNION,
+        /**
+         * Only the leaf regions are decoded, parent regions (including the root of the atlas) have an empty geometry:
+         * they only structure the hierarchy. Their area is the sum of the areas of their leaf regions.
+         * As the hierarchy can't resolve objects into empty regions, the atlas is always inserted in bulk,
+         * see {@link #bulkInsert(boolean)}; objects added later must be assigned with an {@link AtlasLabelMap}.
+         */
+        EMPTY
+    }
+
+    private boolean splitLeftRight = true;
+    private boolean overwrite = true;
+    private boolean bulkInsert = false;
+    private boolean incremental = false;
+    private boolean geometryCache = false;
+    private double simplifyTolerance = 0;
+    private ParentRegions parentRegions = ParentRegions.DECODED;
+    private double labelMapDownsample = DEFAULT_LABEL_MAP_DOWNSAMPLE;
+
+    /**
+     * @param splitLeftRight whether to split the regions between the left and right hemispheres (default true)
+     * @return these options
+     */
+    public AtlasImportOptions splitLeftRight(boolean splitLeftRight) {
+        this.splitLeftRight = splitLeftRight;
+        return this;
+    }
+
+    /**
+     * @param overwrite whether to remove the previously imported regions of the same atlas (default true)
+     * @return these options
+     */
+    public AtlasImportOptions overwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+        return this;
+    }
+
+    /**
+     * In bulk mode, the existing detections are assigned to the new regions in one pass with an {@link AtlasLabelMap},
+     * then the whole atlas is attached to the hierarchy with a single change event, instead of letting the hierarchy
+     * resolve the parent of each object. Only the detections at the root of the hierarchy or in a replaced atlas
+     * are moved; detections in other annotations are left where they are.
+     * @param bulkInsert whether to insert the atlas in bulk (default false)
+     * @return these options
+     */
+    public AtlasImportOptions bulkInsert(boolean bulkInsert) {
+        this.bulkInsert = bulkInsert;
+        return this;
+    }
+
+    /**
+     * In incremental mode, a previous import of the same atlas is updated rather than replaced: each imported region
+     * carries a fingerprint of its geometry ({@link AtlasTools#METADATA_FINGERPRINT}), and the regions whose fingerprint
+     * is unchanged are kept with their measurements and child objects, only their name, class and color being updated.
+     * Only the changed regions are converted again. Objects of the replaced regions are moved to the new regions
+     * as in bulk mode. Without previous import, this is a standard import.
+     * @param incremental whether to re-import incrementally (default false)
+     * @return these options
+     */
+    public AtlasImportOptions incremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    /**
+     * With the geometry cache, the converted regions are stored in the entry folder, see {@link AtlasGeometryCache},
+     * and the next imports of the same RoiSet, with the same rotation and split, only read them back.
+     * @param geometryCache whether to use the geometry cache (default false)
+     * @return these options
+     */
+    public AtlasImportOptions geometryCache(boolean geometryCache) {
+        this.geometryCache = geometryCache;
+        return this;
+    }
+
+    /**
+     * Simplifies the imported regions, to lighten their display and the hierarchy operations, see {@link AtlasRegionSimplifier}.
+     * The area of each region at full resolution is kept as a measurement, and the full resolution regions are written
+     * to the geometry cache of the entry even if {@link #geometryCache(boolean)} is off, in which case they are not read back.
+     * Decoded parent regions are simplified separately from the leaf regions, so that the pixels which the atlas only labels
+     * at parent level are kept; their borders may then differ slightly from those of their simplified children.
+     * The tolerance is part of the region fingerprints: an incremental re-import reuses the regions only if they were
+     * simplified with the same tolerance, and converts all the regions again if any of them changed.
+     * @param tolerance the simplification tolerance, in pixels of the image, 0 to keep the full resolution (default 0)
+     * @return these options
+     */
+    public AtlasImportOptions simplifyTolerance(double tolerance) {
+        this.simplifyTolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * The parent regions of the RoiSet are the largest and the most expensive to decode, convert and split.
+     * They can be derived from the leaf regions instead: the hierarchy is unchanged, but the parts of a parent region
+     * which are not covered by any of its children in the RoiSet are lost.
+     * @param parentRegions how the parent regions are imported (default {@link ParentRegions#DECODED})
+     * @return these options
+     */
+    public AtlasImportOptions parentRegions(ParentRegions parentRegions) {
+        this.parentRegions = parentRegions;
+        return this;
+    }
+
+    /**
+     * @param downsample the downsample of the label map used in bulk and incremental modes, see {@link AtlasLabelMap#build}
+     * @return these options
+     */
+    public AtlasImportOptions labelMapDownsample(double downsample) {
+        this.labelMapDownsample = downsample;
+        return this;
+    }
+
+    public boolean isSplitLeftRight() {
+        return splitLeftRight;
+    }
+
+    public boolean isOverwrite() {
+        return overwrite;
+    }
+
+    public boolean isBulkInsert() {
+        return bulkInsert;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isGeometryCache() {
+        return geometryCache;
+    }
+
+    public double getSimplifyTolerance() {
+        return simplifyTolerance;
+    }
+
+    public ParentRegions getParentRegions() {
+        return parentRegions;
+    }
+
+    public double getLabelMapDownsample() {
+        return labelMapDownsample;
+    }
+}
@@ -1,6 +1,5 @@
 package qupath.ext.biop.abba;
 
-import com.google.gson.Gson;
 import ij.gui.Roi;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.InvertibleRealTransform;
@@ -11,16 +10,10 @@ import qupath.ext.biop.abba.struct.AtlasHelper;
 import qupath.ext.biop.abba.struct.AtlasNode;
 import qupath.ext.biop.abba.struct.AtlasOntology;
 import qupath.ext.warpy.Warpy;
-import qupath.imagej.tools.IJTools;
 import qupath.lib.common.ColorTools;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.servers.ImageServerBuilder;
-import qupath.lib.images.servers.ImageServerMetadata;
-import qupath.lib.images.servers.RotatedImageServer;
 import qupath.lib.measurements.MeasurementList;
-import qupath.lib.measurements.MeasurementListFactory;
 import qupath.lib.objects.PathObject;
-import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.projects.Project;
@@ -32,23 +25,20 @@ import qupath.lib.scripting.QP;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import static qupath.ext.biop.abba.AtlasTools.getLazyNestedBuilders;
-import static qupath.ext.biop.abba.AtlasTools.getLazyRotation;
-
 public class AtlasImporter {
     private ImageData<BufferedImage> imageData;
     private String atlasName;
@@ -56,6 +46,7 @@ public class AtlasImporter {
     private String ontologyProperty;
     private Project<BufferedImage> project;
     private boolean splitLeftRight;
+    private boolean bulkInsert;
     private AtlasOntology ontology;
 
     public AtlasImporter(ImageData<BufferedImage> imageData) {
@@ -82,6 +73,7 @@ public class AtlasImporter {
         private ImageData<BufferedImage> imageData;
         private String ontologyProperty;
         private boolean splitLeftRight = true;
+        private boolean bulkInsert = false;
 
         private AtlasBuilder(ImageData<BufferedImage> imageData) {
             this.imageData = imageData;
@@ -95,6 +87,10 @@ public class AtlasImporter {
             this.splitLeftRight = false;
             return this;
         }
+        AtlasBuilder bulkInsert() {
+            this.bulkInsert = true;
+            return this;
+        }
 
         AtlasImporter build() {
             AtlasImporter loader = new AtlasImporter(this.imageData);
@@ -144,6 +140,8 @@ public class AtlasImporter {
             loader.splitLeftRight = this.splitLeftRight;
             logger.info("Left/Right splitting set to {}", loader.splitLeftRight);
 
+            loader.bulkInsert = this.bulkInsert;
+
             return loader;
         }
     }
@@ -155,6 +153,11 @@ public class AtlasImporter {
     public void loadWarpedAtlasAnnotations() {
 
         // Now we have all we need, the name whether to split left and right
+        if (this.bulkInsert) {
+            // Existing detections are assigned to the regions in one pass, with a single hierarchy event
+            AtlasTools.insertAtlasInBulk(imageData, getWarpedAtlasRegions(), List.of(), AtlasImportOptions.DEFAULT_LABEL_MAP_DOWNSAMPLE);
+            return;
+        }
         imageData.getHierarchy().addObject(getWarpedAtlasRegions());
         imageData.getHierarchy().fireHierarchyChangedEvent(AtlasTools.class);
     }
@@ -204,144 +207,69 @@ public class AtlasImporter {
 
     public List<PathObject> getFlattenedWarpedAtlasRegions() {
 
+        // The rois will need to be transformed before being imported if the server is rotated
+        AffineTransform transform = AtlasGeometryContext.of(imageData).getTransform();
+
+        AffineTransform finalTransform = transform;
+
         // The ROI Set is the same as the atlas file but ends in zip
-        ArrayList<Roi> rois = new ArrayList<>();
+        // Each ROI is converted as soon as it is decoded, so that the raw ImageJ ROIs do not stay in memory
+        Map<Integer, PathObject> regions = new ConcurrentSkipListMap<>();
+        Map<String, Roi> hemispheres = new ConcurrentHashMap<>();
         if (this.roiFile.exists()) {
-            rois = RoiSetLoader.openRoiSet(this.roiFile);
+            try {
+                RoiSetLoader.forEachRoi(this.roiFile, true, (roi, index) -> {
+                    if (roi.getName().equals("Left") || roi.getName().equals("Right")) {
+                        hemispheres.put(roi.getName(), roi);
+                    } else {
+                        regions.put(index, createRegionObject(roi, finalTransform));
+                    }
+                });
+            } catch (IOException e) {
+                // Abort rather than import part of the atlas
+                throw new UncheckedIOException(e);
+            }
         }
+        List<PathObject> annotations = new ArrayList<>(regions.values());
 
         // The ontology is what contains all the information about each ROI, their relationships and so on
-        logger.info("Loading {} Atlas Regions for {}", rois.size(), project.getEntry(this.imageData).getImageName());
-
-        Roi right = null;
-        Roi left = null;
-
-        for (Roi roi : rois) {
-            if (roi.getName().equals("Left")) {
-                left = roi;
-            }
-            if (roi.getName().equals("Right")) {
-                right = roi;
-            }
-        }
+        logger.info("Loaded {} Atlas Regions for {}", annotations.size(), project.getEntry(this.imageData).getImageName());
 
-        rois.remove(left);
-        rois.remove(right);
-
-        AffineTransform transform = null;
-        for (ImageServerBuilder.ServerBuilder<?> serverBuilder: getLazyNestedBuilders(imageData)) {
-            // The roi will need to be transformed before being imported
-            Optional<RotatedImageServer.Rotation> rotation;
-            if ((rotation = getLazyRotation(serverBuilder)).isEmpty())
-                // the server is not rotated
-                continue;
-            ImageServerMetadata metadata = imageData.getServerMetadata();
-            switch (rotation.get()) {
-                case ROTATE_NONE: // No rotation.
-                    break;
-                case ROTATE_90: // Rotate 90 degrees clockwise.
-                    transform = AffineTransform.getRotateInstance(Math.PI / 2.0);
-                    transform.translate(0, -metadata.getWidth());
-                    break;
-                case ROTATE_180: // Rotate 180 degrees.
-                    transform = AffineTransform.getRotateInstance(Math.PI);
-                    transform.translate(-metadata.getWidth(), -metadata.getHeight());
-                    break;
-                case ROTATE_270: // Rotate 270 degrees
-                    transform = AffineTransform.getRotateInstance(Math.PI * 3.0 / 2.0);
-                    transform.translate(-metadata.getHeight(), 0);
-                    break;
-                default:
-                    System.err.println("Unknown rotation for rotated image server: " + rotation.get());
-            }
+        if (this.splitLeftRight) {
+            ROI leftROI = AtlasTools.convertHemisphere(hemispheres.get("Left"), finalTransform);
+            ROI rightROI = AtlasTools.convertHemisphere(hemispheres.get("Right"), finalTransform);
+            return AtlasTools.splitLeftRight(annotations, leftROI, rightROI);
+        } else {
+            return annotations;
         }
+    }
 
-        AffineTransform finalTransform = transform;
-
-        List<PathObject> annotations = rois.stream().map(roi -> {
-            // Create PathObject
-            PathObject object = PathObjects.createAnnotationObject(IJTools.convertToROI(roi, 0, 0, 1, null));
-
-            // Handles rotated image server
-            if (finalTransform != null) {
-                object = PathObjectTools.transformObject(object, finalTransform, true);
-            }
-
-            // Add metadata to object as acquired from the Ontology
-            int object_id = Integer.parseInt(roi.getName());
-            addOntologyAsMeasurements(object, this.ontology, object_id);
-
-            AtlasNode node = this.ontology.getNodeFromId(object_id);
-            String name = node.data().get(this.ontologyProperty);
-
-            object.setPathClass(QP.getPathClass(name));
+    private PathObject createRegionObject(Roi roi, AffineTransform transform) {
+        // Create PathObject, the ROI being directly converted in the coordinates of the rotated image server
+        PathObject object = PathObjects.createAnnotationObject(AtlasTools.convertRoi(roi, transform));
 
-            object.setName(name);
-            object.getMeasurementList().put("ID", node.getId());
+        // Add metadata to object as acquired from the Ontology
+        int object_id = Integer.parseInt(roi.getName());
+        addOntologyAsMeasurements(object, this.ontology, object_id);
 
-            if (node.parent() != null) {
-                object.getMeasurementList().put("Parent ID", node.parent().getId());
-            }
+        AtlasNode node = this.ontology.getNodeFromId(object_id);
+        String name = node.data().get(this.ontologyProperty);
 
-            // Get some aesthetics right
-            object.setLocked(true);
-            int[] rgba = node.getColor();
-            int color = ColorTools.packRGB(rgba[0], rgba[1], rgba[2]);
-            object.setColor(color);
-            return object;
+        object.setPathClass(QP.getPathClass(name));
 
-        }).collect(Collectors.toList());
+        object.setName(name);
+        object.getMeasurementList().put("ID", node.getId());
 
-        if (this.splitLeftRight) {
-            ROI leftROI = null;
-            ROI rightROI = null;
-            if (left != null) {
-                leftROI = IJTools.convertToROI(left, 0, 0, 1, null);
-                // Handles rotated image server
-                if (finalTransform != null) {
-                    PathObject leftObject = PathObjects.createAnnotationObject(leftROI);
-                    leftROI = PathObjectTools.transformObject(leftObject, finalTransform, true).getROI();
-                }
-            }
-            if (right != null) {
-                rightROI = IJTools.convertToROI(right, 0, 0, 1, null);
-                // Handles rotated image server
-                if (finalTransform != null) {
-                    PathObject rightObject = PathObjects.createAnnotationObject(rightROI);
-                    rightROI = PathObjectTools.transformObject(rightObject, finalTransform, true).getROI();
-                }
-            }
-            List<PathObject> splitObjects = new ArrayList<>();
-            for (PathObject annotation : annotations) {
-
-                if (leftROI != null) {
-                    ROI shapeLeft = RoiTools.combineROIs(leftROI, annotation.getROI(), RoiTools.CombineOp.INTERSECT);
-                    if (!shapeLeft.isEmpty()) {
-                        PathObject objectLeft = PathObjects.createAnnotationObject(shapeLeft, annotation.getPathClass(), duplicateMeasurements(annotation.getMeasurementList()));
-                        objectLeft.setName(annotation.getName());
-                        objectLeft.setPathClass(QP.getDerivedPathClass(QP.getPathClass("Left"), annotation.getPathClass().getName()));
-                        objectLeft.setColor(annotation.getColor());
-                        objectLeft.setLocked(true);
-                        splitObjects.add(objectLeft);
-                    }
-                }
-
-                if (rightROI != null) {
-                    ROI shapeRight = RoiTools.combineROIs(rightROI, annotation.getROI(), RoiTools.CombineOp.INTERSECT);
-                    if (!shapeRight.isEmpty()) {
-                        PathObject objectRight = PathObjects.createAnnotationObject(shapeRight, annotation.getPathClass(), duplicateMeasurements(annotation.getMeasurementList()));
-                        objectRight.setName(annotation.getName());
-                        objectRight.setPathClass(QP.getDerivedPathClass(QP.getPathClass("Right"), annotation.getPathClass().getName()));
-                        objectRight.setColor(annotation.getColor());
-                        objectRight.setLocked(true);
-                        splitObjects.add(objectRight);
-                    }
-                }
-            }
-            return splitObjects;
-        } else {
-            return annotations;
+        if (node.parent() != null) {
+            object.getMeasurementList().put("Parent ID", node.parent().getId());
         }
+
+        // Get some aesthetics right
+        object.setLocked(true);
+        int[] rgba = node.getColor();
+        int color = ColorTools.packRGB(rgba[0], rgba[1], rgba[2]);
+        object.setColor(color);
+        return object;
     }
 
     public void addCCFCoordinates(List<PathObject> objects) {
@@ -366,6 +294,24 @@ public class AtlasImporter {
         });
     }
 
+    /**
+     * Same as {@link #addCCFCoordinates(List)}, but the coordinates are kept in a columnar store saved in the entry folder
+     * rather than added to the measurement lists, see {@link AtlasCoordinateStore}. The store writes the same measurements on demand.
+     * @param objects the objects to locate in the atlas
+     * @return the store of the coordinates, or null if there is no transform
+     * @throws IOException if the store can't be written
+     */
+    public AtlasCoordinateStore storeCCFCoordinates(List<PathObject> objects) throws IOException {
+        RealTransform transform = getAtlasTransform();
+        if (transform == null)
+            return null;
+        RealTransform invertedTransform = ((InvertibleRealTransform) transform).inverse();
+        AtlasCoordinateStore store = AtlasCoordinateStore.of(AtlasCoordinates.compute(objects, invertedTransform), false);
+        store.setMeasurementNames("Allen CCFv3 X mm", "Allen CCFv3 Y mm", "Allen CCFv3 Z mm");
+        store.write(AtlasCoordinateStore.getPath(project.getEntry(this.imageData), this.atlasName));
+        return store;
+    }
+
     private List<String> getAvailableAtlasNames() {
         File entryFolder = getEntryFolder(this.imageData);
 
@@ -408,7 +354,7 @@ public class AtlasImporter {
 
         if(transformFile.exists()) {
             logger.info("Loading transform from {}", transformFile);
-            return Warpy.getRealTransform(transformFile);
+            return AtlasTransformCache.getRealTransform(transformFile);
         }
         return null;
     }
@@ -417,25 +363,7 @@ public class AtlasImporter {
 
         File ontologyFile = new File(getProjectFolder(this.imageData), this.atlasName+"-Ontology.json");
 
-        if (ontologyFile.exists()) {
-            Gson gson = new Gson();
-            try {
-                FileReader fr = new FileReader(ontologyFile.getAbsoluteFile());
-                AtlasHelper.SerializableOntology ontology = gson.fromJson(new FileReader(ontologyFile.getAbsoluteFile()), AtlasHelper.SerializableOntology.class);
-                ontology.initialize();
-                fr.close();
-                return ontology;
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return null;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
-            }
-        } else return null;
+        return AtlasHelper.openOntologyFromJsonFile(ontologyFile.getAbsolutePath());
     }
 
     private PathObject createAnnotationHierarchy(List<PathObject> annotations) {
@@ -481,16 +409,6 @@ public class AtlasImporter {
         });
     }
 
-    private MeasurementList duplicateMeasurements(MeasurementList measurements) {
-        MeasurementList list = MeasurementListFactory.createMeasurementList(measurements.size(), MeasurementList.MeasurementListType.GENERAL);
-
-        for (String name : measurements.getMeasurementNames()) {
-            double value = measurements.get(name);
-            list.put(name, value);
-        }
-        return list;
-    }
-
     private File getEntryFolder( ImageData<BufferedImage> imageData ) {
         return QP.getProject().getEntry(imageData).getEntryPath().toFile();
     }
@@ -0,0 +1,303 @@
+package qupath.ext.biop.abba;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.lib.scripting.QP;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Raster of the imported atlas regions, to assign objects to regions with a single array lookup.<br>
+ * The regions are drawn at a given downsample, parents first, so that each pixel holds the label of the
+ * deepest region covering it. Each label stands for one imported annotation, hence for one region id
+ * and one hemisphere. Pixels crossed by a region border are marked as such: objects falling in them
+ * are assigned with an exact point in polygon test over the regions of the neighbouring pixels.
+ * Parent regions imported with an empty geometry (see {@link AtlasImportOptions.ParentRegions#EMPTY}) are not drawn:
+ * objects are assigned to their leaf regions.
+ */
+public class AtlasLabelMap {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasLabelMap.class);
+
+    public static final String MEASUREMENT_REGION_ID = "Atlas region ID";
+    public static final String MEASUREMENT_SIDE = "Atlas side";
+    public static final String METADATA_REGION_NAME = "Atlas region";
+
+    public static final int SIDE_NONE = 0;
+    public static final int SIDE_LEFT = 1;
+    public static final int SIDE_RIGHT = 2;
+
+    private static final int BACKGROUND = 0;
+    private static final int BORDER = 0xFFFFFF;
+
+    private final PathObject atlasRoot;
+    private final List<PathObject> regions; // region of label i at index i - 1
+    private final int[] regionIds;
+    private final int[] regionSides;
+    private final Map<PathObject, Integer> labelOf = new IdentityHashMap<>();
+    private final int width;
+    private final int height;
+    private final double downsample;
+    private final int[] labels;
+
+    private AtlasLabelMap(PathObject atlasRoot, List<PathObject> regions, int width, int height, double downsample, int[] labels) {
+        this.atlasRoot = atlasRoot;
+        this.regions = regions;
+        this.width = width;
+        this.height = height;
+        this.downsample = downsample;
+        this.labels = labels;
+        this.regionIds = new int[regions.size()];
+        this.regionSides = new int[regions.size()];
+        for (int i = 0; i < regions.size(); i++) {
+            PathObject region = regions.get(i);
+            regionIds[i] = (int) region.getMeasurementList().get("ID");
+            regionSides[i] = getSide(region.getPathClass());
+            labelOf.put(region, i + 1);
+        }
+    }
+
+    /**
+     * @param pathClass the class of an imported atlas region
+     * @return {@link #SIDE_LEFT} or {@link #SIDE_RIGHT} for the regions split between hemispheres, {@link #SIDE_NONE} otherwise
+     */
+    static int getSide(PathClass pathClass) {
+        if (pathClass == null)
+            return SIDE_NONE;
+        if (pathClass.isDerivedFrom(QP.getPathClass("Left")))
+            return SIDE_LEFT;
+        if (pathClass.isDerivedFrom(QP.getPathClass("Right")))
+            return SIDE_RIGHT;
+        return SIDE_NONE;
+    }
+
+    /**
+     * Rasterizes the regions of an imported atlas.
+     * @param atlasRoot the root annotation of the imported atlas
+     * @param imageWidth the width of the image, in pixels
+     * @param imageHeight the height of the image, in pixels
+     * @param downsample the downsample of the raster: larger values use less memory but send more objects to the exact test
+     * @return the label map of the atlas
+     */
+    public static AtlasLabelMap build(PathObject atlasRoot, int imageWidth, int imageHeight, double downsample) {
+        long start = System.nanoTime();
+        List<PathObject> regions = new ArrayList<>();
+        collectRegions(atlasRoot, regions);
+        if (regions.size() >= BORDER)
+            throw new IllegalArgumentException("Too many atlas regions to rasterize: " + regions.size());
+
+        int width = (int) Math.ceil(imageWidth / downsample);
+        int height = (int) Math.ceil(imageHeight / downsample);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        g2d.scale(1.0 / downsample, 1.0 / downsample);
+        // Parents come before their children, so each pixel ends with the deepest region
+        for (int i = 0; i < regions.size(); i++) {
+            if (regions.get(i).getROI().isEmpty())
+                continue;
+            g2d.setColor(new Color(i + 1));
+            g2d.fill(regions.get(i).getROI().getShape());
+        }
+        // Mark the pixels within one raster pixel of a border, where the raster can't be trusted
+        g2d.setColor(new Color(BORDER));
+        g2d.setStroke(new BasicStroke((float) (2 * downsample)));
+        for (PathObject region : regions) {
+            if (!region.getROI().isEmpty())
+                g2d.draw(region.getROI().getShape());
+        }
+        g2d.dispose();
+
+        int[] labels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < labels.length; i++)
+            labels[i] &= 0xFFFFFF;
+        logger.info("Atlas label map of {} regions ({}x{} pixels) built in {} ms",
+                regions.size(), width, height, (System.nanoTime() - start) / 1e6);
+        return new AtlasLabelMap(atlasRoot, regions, width, height, downsample, labels);
+    }
+
+    /**
+     * Adds the atlas regions below an object in depth-first order: an atlas region is an annotation with an 'ID' measurement
+     */
+    private static void collectRegions(PathObject object, List<PathObject> regions) {
+        for (PathObject child : object.getChildObjectsAsArray()) {
+            if (isAtlasRegion(child)) {
+                regions.add(child);
+                collectRegions(child, regions);
+            }
+        }
+    }
+
+    private static boolean isAtlasRegion(PathObject object) {
+        return object.isAnnotation() && object.hasROI() && object.getMeasurementList().containsKey("ID");
+    }
+
+    /**
+     * @return the label of the region containing a point, -1 if the point is on a border, 0 if outside the atlas
+     */
+    private int getLabel(double x, double y) {
+        int px = (int) (x / downsample);
+        int py = (int) (y / downsample);
+        if (px < 0 || py < 0 || px >= width || py >= height)
+            return BACKGROUND;
+        int label = labels[py * width + px];
+        return label == BORDER ? -1 : label;
+    }
+
+    /**
+     * Exact assignment of a point on a border: the regions of the raster pixels around the point are tested first.
+     * As regions are labelled in depth-first order, the highest label containing the point is the deepest region;
+     * its child regions, which may be too thin to own a pixel, are then searched.
+     * If no neighbouring region contains the point, the whole atlas hierarchy is searched.
+     * @return the deepest region containing the point, or null
+     */
+    private PathObject findRegionExact(double x, double y) {
+        int px = (int) (x / downsample);
+        int py = (int) (y / downsample);
+        int deepest = BACKGROUND;
+        // The border stroke covers about one raster pixel on each side of a border
+        for (int ny = Math.max(0, py - 2); ny <= Math.min(height - 1, py + 2); ny++) {
+            for (int nx = Math.max(0, px - 2); nx <= Math.min(width - 1, px + 2); nx++) {
+                int label = labels[ny * width + nx];
+                if (label != BACKGROUND && label != BORDER && label > deepest && regions.get(label - 1).getROI().contains(x, y))
+                    deepest = label;
+            }
+        }
+        if (deepest == BACKGROUND)
+            return findRegionExact(atlasRoot, x, y);
+        PathObject region = regions.get(deepest - 1);
+        PathObject child = findRegionExact(region, x, y);
+        return child == null ? region : child;
+    }
+
+    /**
+     * Descends the atlas hierarchy through the regions which contain a point. Regions with an empty geometry
+     * are crossed: the point is searched in their child regions.
+     * @return the deepest region below parent containing the point, or null
+     */
+    private static PathObject findRegionExact(PathObject parent, double x, double y) {
+        for (PathObject child : parent.getChildObjectsAsArray()) {
+            if (!isAtlasRegion(child))
+                continue;
+            if (child.getROI().isEmpty()) {
+                PathObject region = findRegionExact(child, x, y);
+                if (region != null)
+                    return region;
+            } else if (child.getROI().contains(x, y)) {
+                PathObject region = findRegionExact(child, x, y);
+                return region == null ? child : region;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param x the x coordinate of a point, in image pixels
+     * @param y the y coordinate of a point, in image pixels
+     * @return the deepest atlas annotation containing the point, or null if the point is outside the atlas
+     */
+    public PathObject getRegion(double x, double y) {
+        int label = getLabel(x, y);
+        if (label < 0)
+            return findRegionExact(x, y);
+        return label == BACKGROUND ? null : regions.get(label - 1);
+    }
+
+    /**
+     * Assigns objects to the atlas regions containing their centroid, and writes on each object the region id
+     * ({@link #MEASUREMENT_REGION_ID}), its side ({@link #MEASUREMENT_SIDE}: {@link #SIDE_NONE}, {@link #SIDE_LEFT}
+     * or {@link #SIDE_RIGHT}) and its name (metadata {@link #METADATA_REGION_NAME}).
+     * Objects outside of the atlas get NaN measurements.<br>
+     * The raster lookups run in parallel; the objects on region borders are then assigned exactly.
+     * @param objects the objects to assign, usually detections
+     * @return the number of objects assigned to a region
+     */
+    public int assignRegions(Collection<PathObject> objects) {
+        long start = System.nanoTime();
+        List<PathObject> objectList = new ArrayList<>(objects);
+        int[] objectLabels = getLabels(objectList);
+        int nAssigned = (int) IntStream.range(0, objectList.size()).parallel().filter(i -> {
+            PathObject object = objectList.get(i);
+            MeasurementList ml = object.getMeasurementList();
+            int label = objectLabels[i];
+            if (label == BACKGROUND) {
+                ml.put(MEASUREMENT_REGION_ID, Double.NaN);
+                ml.put(MEASUREMENT_SIDE, Double.NaN);
+                object.getMetadata().remove(METADATA_REGION_NAME);
+                return false;
+            }
+            ml.put(MEASUREMENT_REGION_ID, regionIds[label - 1]);
+            ml.put(MEASUREMENT_SIDE, regionSides[label - 1]);
+            object.getMetadata().put(METADATA_REGION_NAME, regions.get(label - 1).getName());
+            return true;
+        }).count();
+        logger.info("{}/{} objects assigned to atlas regions in {} ms",
+                nAssigned, objectList.size(), (System.nanoTime() - start) / 1e6);
+        return nAssigned;
+    }
+
+    /**
+     * Finds the atlas regions containing the centroids of objects, without modifying the objects.
+     * @param objects the objects to locate, usually detections
+     * @return the deepest atlas annotation containing the centroid of each object, null for the objects outside of the atlas
+     */
+    public PathObject[] getRegions(List<PathObject> objects) {
+        int[] objectLabels = getLabels(objects);
+        PathObject[] objectRegions = new PathObject[objectLabels.length];
+        for (int i = 0; i < objectLabels.length; i++) {
+            if (objectLabels[i] != BACKGROUND)
+                objectRegions[i] = regions.get(objectLabels[i] - 1);
+        }
+        return objectRegions;
+    }
+
+    /**
+     * @return the labels of the regions containing the centroids of the objects, BACKGROUND outside of the atlas
+     */
+    private int[] getLabels(List<PathObject> objects) {
+        int[] objectLabels = new int[objects.size()];
+        ConcurrentLinkedQueue<Integer> onBorders = new ConcurrentLinkedQueue<>();
+        IntStream.range(0, objects.size()).parallel().forEach(i -> {
+            ROI roi = objects.get(i).getROI();
+            objectLabels[i] = getLabel(roi.getCentroidX(), roi.getCentroidY());
+            if (objectLabels[i] < 0)
+                onBorders.add(i);
+        });
+        // Exact test on the borders, sequential as ROI point tests may lazily cache their geometry
+        for (int i : onBorders) {
+            ROI roi = objects.get(i).getROI();
+            PathObject region = findRegionExact(roi.getCentroidX(), roi.getCentroidY());
+            objectLabels[i] = region == null ? BACKGROUND : labelOf.get(region);
+        }
+        logger.debug("{}/{} objects on region borders assigned exactly", onBorders.size(), objects.size());
+        return objectLabels;
+    }
+
+    /**
+     * @return the atlas annotations of this map, in the order of their labels
+     */
+    public List<PathObject> getRegions() {
+        return regions;
+    }
+
+    /**
+     * @return the downsample of the raster
+     */
+    public double getDownsample() {
+        return downsample;
+    }
+}
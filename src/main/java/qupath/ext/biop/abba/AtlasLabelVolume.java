@@ -0,0 +1,332 @@
+package qupath.ext.biop.abba;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.abba.struct.AtlasNode;
+import qupath.ext.biop.abba.struct.AtlasOntology;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Atlas annotation volume, read from a local raw or NRRD file, to assign atlas coordinates to ontology regions
+ * without importing any region annotation.<br>
+ * The voxels are memory-mapped, so the volume is not held on heap: the 10 um Allen annotation volume
+ * (about 2 GB as 32 bits labels) only costs the pages actually read. The file is mapped in chunks,
+ * since a single mapping can't exceed 2 GB.<br>
+ * Atlas coordinates are converted to voxel indices by an affine transform, by default a scaling by the voxel size,
+ * which assumes that the volume axes are the atlas axes. Voxel centers are at integer indices.
+ * Only the raw NRRD encoding can be mapped: compressed volumes (e.g. gzip encoded) need to be decompressed first.
+ */
+public class AtlasLabelVolume {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasLabelVolume.class);
+
+    private static final int CHUNK_SHIFT = 30; // 1 GB mapped per chunk
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    /**
+     * Types of the voxels of a label volume
+     */
+    public enum VoxelType {
+        UINT8(1), UINT16(2), INT32(4);
+
+        final int bytes;
+
+        VoxelType(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final File file;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final VoxelType type;
+    private final MappedByteBuffer[] chunks;
+    private final double[] atlasToVoxel = new double[12];
+
+    private AtlasLabelVolume(File file, long offset, int sizeX, int sizeY, int sizeZ, VoxelType type, ByteOrder order) throws IOException {
+        this.file = file;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.type = type;
+        long nBytes = (long) sizeX * sizeY * sizeZ * type.bytes;
+        if (offset < 0 || offset + nBytes > file.length())
+            throw new IOException("File " + file + " is too short for a volume of " + sizeX + "x" + sizeY + "x" + sizeZ + " " + type);
+        int nChunks = (int) ((nBytes + CHUNK_MASK) >>> CHUNK_SHIFT);
+        this.chunks = new MappedByteBuffer[nChunks];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mappings remain valid once the channel is closed
+            for (int i = 0; i < nChunks; i++) {
+                long start = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(nBytes - start, 1L << CHUNK_SHIFT));
+                chunks[i].order(order);
+            }
+        }
+    }
+
+    /**
+     * Maps a raw label volume, stored with x varying fastest.
+     * @param file the raw file
+     * @param offset the position of the first voxel in the file, in bytes
+     * @param sizeX the size of the volume along x, in voxels
+     * @param sizeY the size of the volume along y, in voxels
+     * @param sizeZ the size of the volume along z, in voxels
+     * @param type the type of the voxels
+     * @param order the byte order of the voxels
+     * @param voxelSize the size of a voxel, in atlas units (millimeters for ABBA atlases)
+     * @return the mapped volume
+     * @throws IOException if the file can't be mapped
+     */
+    public static AtlasLabelVolume openRaw(File file, long offset, int sizeX, int sizeY, int sizeZ, VoxelType type, ByteOrder order, double voxelSize) throws IOException {
+        AtlasLabelVolume volume = new AtlasLabelVolume(file, offset, sizeX, sizeY, sizeZ, type, order);
+        AffineTransform3D scaling = new AffineTransform3D();
+        scaling.scale(1.0 / voxelSize);
+        volume.setAtlasToVoxelTransform(scaling);
+        logger.info("Atlas label volume {} mapped: {}x{}x{} {} voxels", file.getName(), sizeX, sizeY, sizeZ, type);
+        return volume;
+    }
+
+    /**
+     * Maps the data of a 3D NRRD label volume, with attached or detached ("data file") raw data.
+     * @param file the NRRD header file
+     * @param voxelSize the size of a voxel, in atlas units (millimeters for ABBA atlases)
+     * @return the mapped volume
+     * @throws IOException if the header is invalid, the encoding is not raw, or the data can't be mapped
+     */
+    public static AtlasLabelVolume openNrrd(File file, double voxelSize) throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        long headerLength;
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            String magic = readLine(stream);
+            if (magic == null || !magic.startsWith("NRRD"))
+                throw new IOException(file + " is not a NRRD file");
+            headerLength = magic.getBytes(StandardCharsets.UTF_8).length + 1;
+            String line;
+            while ((line = readLine(stream)) != null) {
+                headerLength += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (line.endsWith("\r"))
+                    line = line.substring(0, line.length() - 1);
+                if (line.isEmpty())
+                    break; // End of the header, the data follows if attached
+                if (line.startsWith("#") || line.contains(":="))
+                    continue; // Comments and key/value pairs
+                int separator = line.indexOf(':');
+                if (separator > 0)
+                    fields.put(line.substring(0, separator).trim().toLowerCase(), line.substring(separator + 1).trim());
+            }
+        }
+
+        String encoding = fields.getOrDefault("encoding", "");
+        if (!encoding.equals("raw"))
+            throw new IOException("NRRD encoding '" + encoding + "' can't be memory-mapped, please convert " + file + " to raw encoding");
+        if (!fields.getOrDefault("dimension", "").equals("3"))
+            throw new IOException("NRRD file " + file + " is not a 3D volume");
+        String[] sizes = fields.getOrDefault("sizes", "").split("\\s+");
+        if (sizes.length != 3)
+            throw new IOException("Invalid NRRD sizes in " + file);
+        int sizeX = Integer.parseInt(sizes[0]);
+        int sizeY = Integer.parseInt(sizes[1]);
+        int sizeZ = Integer.parseInt(sizes[2]);
+        VoxelType type = getVoxelType(fields.getOrDefault("type", ""));
+        if (type == null)
+            throw new IOException("Unsupported NRRD type '" + fields.get("type") + "' in " + file);
+        ByteOrder order = fields.getOrDefault("endian", "little").equals("big") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        String dataFileName = fields.containsKey("data file") ? fields.get("data file") : fields.get("datafile");
+        File dataFile = file;
+        long offset = headerLength;
+        if (dataFileName != null) {
+            dataFile = new File(dataFileName);
+            if (!dataFile.isAbsolute())
+                dataFile = new File(file.getParentFile(), dataFileName);
+            offset = 0;
+        }
+        long byteSkip = Long.parseLong(fields.getOrDefault("byte skip", "0"));
+        long nBytes = (long) sizeX * sizeY * sizeZ * type.bytes;
+        if (byteSkip == -1)
+            offset = dataFile.length() - nBytes; // The data is at the end of the file
+        else
+            offset += byteSkip;
+        return openRaw(dataFile, offset, sizeX, sizeY, sizeZ, type, order, voxelSize);
+    }
+
+    private static VoxelType getVoxelType(String nrrdType) {
+        switch (nrrdType) {
+            case "uchar":
+            case "unsigned char":
+            case "uint8":
+            case "uint8_t":
+                return VoxelType.UINT8;
+            case "ushort":
+            case "unsigned short":
+            case "unsigned short int":
+            case "uint16":
+            case "uint16_t":
+                return VoxelType.UINT16;
+            case "int":
+            case "signed int":
+            case "int32":
+            case "int32_t":
+            case "uint":
+            case "unsigned int":
+            case "uint32":
+            case "uint32_t":
+                return VoxelType.INT32; // Ontology ids fit in a signed int
+            default:
+                return null;
+        }
+    }
+
+    private static String readLine(InputStream stream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = stream.read()) != -1 && b != '\n')
+            line.write(b);
+        if (b == -1 && line.size() == 0)
+            return null;
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sets the transform from the atlas coordinates to the voxel indices, for volumes whose axes
+     * or origin differ from the atlas ones.
+     * @param atlasToVoxel the affine transform from the atlas coordinates to the voxel indices
+     */
+    public void setAtlasToVoxelTransform(AffineTransform3D atlasToVoxel) {
+        System.arraycopy(atlasToVoxel.getRowPackedCopy(), 0, this.atlasToVoxel, 0, 12);
+    }
+
+    /**
+     * @param x the voxel x index
+     * @param y the voxel y index
+     * @param z the voxel z index
+     * @return the label of the voxel, or 0 if it is outside of the volume
+     */
+    public int getVoxel(long x, long y, long z) {
+        if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ)
+            return 0;
+        long position = ((z * sizeY + y) * sizeX + x) * type.bytes;
+        // Absolute reads don't change the buffer state, so concurrent reads are safe
+        MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+        int index = (int) (position & CHUNK_MASK);
+        switch (type) {
+            case UINT8:
+                return chunk.get(index) & 0xFF;
+            case UINT16:
+                return chunk.getShort(index) & 0xFFFF;
+            default:
+                return chunk.getInt(index);
+        }
+    }
+
+    /**
+     * @param x the atlas x coordinate
+     * @param y the atlas y coordinate
+     * @param z the atlas z coordinate
+     * @return the label of the voxel containing the point, or 0 if the point is outside of the volume
+     */
+    public int getLabel(double x, double y, double z) {
+        double[] m = atlasToVoxel;
+        double vx = m[0] * x + m[1] * y + m[2] * z + m[3];
+        double vy = m[4] * x + m[5] * y + m[6] * z + m[7];
+        double vz = m[8] * x + m[9] * y + m[10] * z + m[11];
+        if (Double.isNaN(vx) || Double.isNaN(vy) || Double.isNaN(vz))
+            return 0;
+        return getVoxel(Math.round(vx), Math.round(vy), Math.round(vz));
+    }
+
+    /**
+     * Looks up the labels of many points, in parallel.
+     * @param x the atlas x coordinates
+     * @param y the atlas y coordinates
+     * @param z the atlas z coordinates
+     * @return the labels of the points, 0 for the points outside of the volume
+     */
+    public int[] getLabels(double[] x, double[] y, double[] z) {
+        int n = x.length;
+        int[] labels = new int[n];
+        int chunkSize = AtlasCoordinates.getChunkSize(n);
+        IntStream.range(0, (n + chunkSize - 1) / chunkSize).parallel().forEach(chunk -> {
+            int end = Math.min(n, (chunk + 1) * chunkSize);
+            for (int i = chunk * chunkSize; i < end; i++)
+                labels[i] = getLabel(x[i], y[i], z[i]);
+        });
+        return labels;
+    }
+
+    /**
+     * Looks up the ontology regions of many points, in parallel.
+     * @param ontology the ontology of the atlas of the volume
+     * @param x the atlas x coordinates
+     * @param y the atlas y coordinates
+     * @param z the atlas z coordinates
+     * @return the nodes of the regions containing the points, null for the points outside of the atlas
+     */
+    public AtlasNode[] getNodes(AtlasOntology ontology, double[] x, double[] y, double[] z) {
+        int[] labels = getLabels(x, y, z);
+        AtlasNode[] nodes = new AtlasNode[labels.length];
+        IntStream.range(0, labels.length).parallel().forEach(i -> {
+            if (labels[i] != 0)
+                nodes[i] = ontology.getNodeFromId(labels[i]);
+        });
+        return nodes;
+    }
+
+    /**
+     * Assigns objects to the ontology regions containing their atlas coordinates, and writes on each object
+     * the region id ({@link AtlasLabelMap#MEASUREMENT_REGION_ID}) and its name, according to the naming property
+     * of the ontology (metadata {@link AtlasLabelMap#METADATA_REGION_NAME}). Objects outside of the atlas get a NaN id.
+     * @param coordinates the atlas coordinates of the objects
+     * @param ontology the ontology of the atlas of the volume
+     * @return the number of objects assigned to a region
+     */
+    public int assignRegions(AtlasCoordinates coordinates, AtlasOntology ontology) {
+        long start = System.nanoTime();
+        AtlasNode[] nodes = getNodes(ontology, coordinates.getX(), coordinates.getY(), coordinates.getZ());
+        List<PathObject> objects = coordinates.getObjects();
+        String namingProperty = ontology.getNamingProperty();
+        int nAssigned = (int) IntStream.range(0, nodes.length).parallel().filter(i -> {
+            PathObject object = objects.get(i);
+            MeasurementList ml = object.getMeasurementList();
+            AtlasNode node = nodes[i];
+            if (node == null) {
+                ml.put(AtlasLabelMap.MEASUREMENT_REGION_ID, Double.NaN);
+                object.getMetadata().remove(AtlasLabelMap.METADATA_REGION_NAME);
+                return false;
+            }
+            ml.put(AtlasLabelMap.MEASUREMENT_REGION_ID, node.getId());
+            String name = node.data().get(namingProperty);
+            object.getMetadata().put(AtlasLabelMap.METADATA_REGION_NAME, name == null ? Integer.toString(node.getId()) : name);
+            return true;
+        }).count();
+        logger.info("{}/{} objects assigned to atlas regions from volume {} in {} ms",
+                nAssigned, nodes.length, file.getName(), (System.nanoTime() - start) / 1e6);
+        return nAssigned;
+    }
+
+    /**
+     * @return the dimensions of the volume, in voxels
+     */
+    public int[] getDimensions() {
+        return new int[]{sizeX, sizeY, sizeZ};
+    }
+}
@@ -0,0 +1,297 @@
+package qupath.ext.biop.abba;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.abba.struct.AtlasHelper;
+import qupath.ext.biop.abba.struct.AtlasOntology;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Project-wide operations on ABBA registrations: each entry of a project is read, processed
+ * and optionally saved on a bounded pool of worker threads.
+ */
+public class AtlasProjectTools {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasProjectTools.class);
+
+    /**
+     * Heap reserved for each worker: an opened image with its hierarchy, the decoded RoiSet
+     * and the converted atlas regions. Whole brain sections with many detections can use this much.
+     */
+    public static final long DEFAULT_BYTES_PER_WORKER = 1024L * 1024L * 1024L;
+
+    /**
+     * Task run on each entry of a project
+     * @param <T> the type of the result of the task
+     */
+    @FunctionalInterface
+    public interface EntryTask<T> {
+        /**
+         * @param entry the project entry being processed
+         * @param imageData the data read from this entry
+         * @return the result of the task, null if nothing has been done on this entry
+         * @throws Exception if the task fails; the error is logged and the other entries are still processed
+         */
+        T run(ProjectImageEntry<BufferedImage> entry, ImageData<BufferedImage> imageData) throws Exception;
+    }
+
+    /**
+     * Returns the number of workers which can run concurrently, limited by the number of processors
+     * and by the heap which is still free.
+     * @param bytesPerWorker the heap needed by a single worker
+     * @return a number of threads, at least one
+     */
+    public static int getMaxWorkers(long bytesPerWorker) {
+        Runtime runtime = Runtime.getRuntime();
+        long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+        long availableMemory = runtime.maxMemory() - usedMemory;
+        int nWorkersMemory = (int) Math.max(1, availableMemory / Math.max(1, bytesPerWorker));
+        return Math.max(1, Math.min(runtime.availableProcessors(), nWorkersMemory));
+    }
+
+    /**
+     * Runs a task on each entry, reading the image data of each entry on a pool of nThreads workers.
+     * Entries are processed independently: an error on one entry is logged and does not stop the others.
+     * @param entries the entries to process
+     * @param nThreads the number of workers, see {@link #getMaxWorkers(long)}
+     * @param task the task to run on each entry
+     * @param save whether to save the image data of an entry once its task returned a non null result
+     * @return the non null results of the task, in the order of the entries
+     * @param <T> the type of the results
+     */
+    public static <T> List<T> processEntries(Collection<ProjectImageEntry<BufferedImage>> entries, int nThreads, EntryTask<T> task, boolean save) {
+        List<ProjectImageEntry<BufferedImage>> entryList = new ArrayList<>(entries);
+        AtomicInteger nProcessed = new AtomicInteger();
+        AtomicInteger nWorkers = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, entryList.size())), runnable -> {
+            Thread thread = new Thread(runnable, "abba-project-worker-" + nWorkers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<T> results = new ArrayList<>();
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (ProjectImageEntry<BufferedImage> entry : entryList) {
+                Callable<T> callable = () -> {
+                    T result = processEntry(entry, task, save);
+                    logger.info("{}/{} entries processed ({})", nProcessed.incrementAndGet(), entryList.size(), entry.getImageName());
+                    return result;
+                };
+                futures.add(pool.submit(callable));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    T result = futures.get(i).get();
+                    if (result != null)
+                        results.add(result);
+                } catch (ExecutionException e) {
+                    logger.error("Error while processing entry {}", entryList.get(i).getImageName(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Processing of the project entries interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private static <T> T processEntry(ProjectImageEntry<BufferedImage> entry, EntryTask<T> task, boolean save) throws Exception {
+        ImageData<BufferedImage> imageData = entry.readImageData();
+        try {
+            T result = task.run(entry, imageData);
+            if (save && (result != null))
+                entry.saveImageData(imageData);
+            return result;
+        } finally {
+            // ImageData has no public way to tell whether its lazy server has been built: it is always closed,
+            // so that a batch over hundreds of entries does not leak file handles and reader caches
+            try {
+                imageData.getServer().close();
+            } catch (Exception e) {
+                logger.warn("Could not close the image server of entry {}", entry.getImageName(), e);
+            }
+        }
+    }
+
+    /**
+     * Opens the ontology file exported by ABBA next to the project file.
+     * @param project the project
+     * @param ontologyName the name of the ontology, without the '-Ontology.json' suffix
+     * @return the ontology, or null if it could not be read
+     */
+    public static AtlasOntology getAtlasOntology(Project<BufferedImage> project, String ontologyName) {
+        Path ontologyPath = project.getPath().getParent().resolve(ontologyName+"-Ontology.json").toAbsolutePath();
+        return AtlasHelper.openOntologyFromJsonFile(ontologyPath.toString());
+    }
+
+    /**
+     * Returns the entries of a project which have an ABBA RoiSet for a given registration.
+     * @param project the project
+     * @param roisetName the name of the registration (usually the ontology name)
+     * @return the registered entries, in the order of the project
+     */
+    public static List<ProjectImageEntry<BufferedImage>> getRegisteredEntries(Project<BufferedImage> project, String roisetName) {
+        return project.getImageList()
+                .stream()
+                .filter(entry -> entry.getEntryPath() != null)
+                .filter(entry -> Files.exists(entry.getEntryPath().resolve("ABBA-RoiSet-"+roisetName+".zip")))
+                .toList();
+    }
+
+    /**
+     * Imports the atlas annotations in every registered entry of a project, see
+     * {@link #loadWarpedAtlasAnnotations(Project, Collection, AtlasOntology, String, boolean, boolean, int)}.
+     * @param project the project
+     * @param ontologyName the name of the ontology, without the '-Ontology.json' suffix
+     * @param namingProperty the ontology property used to name the regions
+     * @param splitLeftRight whether to split the regions between the left and right hemispheres
+     * @param overwrite whether to remove the previously imported regions of the same atlas
+     * @return the entries in which the atlas has been imported
+     */
+    public static List<ProjectImageEntry<BufferedImage>> loadWarpedAtlasAnnotations(Project<BufferedImage> project, String ontologyName, String namingProperty, boolean splitLeftRight, boolean overwrite) {
+        AtlasOntology ontology = getAtlasOntology(project, ontologyName);
+        if (ontology == null) {
+            logger.error("Atlas ontology {} not found in project {}", ontologyName, project.getPath());
+            return List.of();
+        }
+        Set<String> namingProperties = AtlasTools.getNamingProperties(ontology);
+        if (!namingProperties.contains(namingProperty)) {
+            logger.error("Ontology Name Property {} not found.\nAvailable properties are:  {}", namingProperty, namingProperties);
+            return List.of();
+        }
+        return loadWarpedAtlasAnnotations(project, getRegisteredEntries(project, ontologyName), ontology.withNamingProperty(namingProperty), ontologyName,
+                splitLeftRight, overwrite, getMaxWorkers(DEFAULT_BYTES_PER_WORKER));
+    }
+
+    /**
+     * Imports the atlas annotations in several entries of a project. The ontology is parsed once and
+     * shared by all workers; each entry is read, imported and saved by a single worker.
+     * The ontology is not modified: an immutable view, see {@link AtlasOntology#withNamingProperty(String)},
+     * can be used to import with several naming properties at the same time.
+     * @param project the project the entries belong to
+     * @param entries the entries in which to import the atlas
+     * @param ontology the atlas ontology, with its naming property already set
+     * @param roisetName the name of the registration (usually the ontology name)
+     * @param splitLeftRight whether to split the regions between the left and right hemispheres
+     * @param overwrite whether to remove the previously imported regions of the same atlas
+     * @param nThreads the maximal number of entries processed at the same time, see {@link #getMaxWorkers(long)}
+     * @return the entries in which the atlas has been imported
+     */
+    public static List<ProjectImageEntry<BufferedImage>> loadWarpedAtlasAnnotations(Project<BufferedImage> project, Collection<ProjectImageEntry<BufferedImage>> entries,
+                                                                                    AtlasOntology ontology, String roisetName,
+                                                                                    boolean splitLeftRight, boolean overwrite, int nThreads) {
+        return loadWarpedAtlasAnnotations(project, entries, ontology, roisetName,
+                new AtlasImportOptions().splitLeftRight(splitLeftRight).overwrite(overwrite), nThreads);
+    }
+
+    /**
+     * Imports the atlas annotations in several entries of a project, see
+     * {@link #loadWarpedAtlasAnnotations(Project, Collection, AtlasOntology, String, boolean, boolean, int)}.
+     * @param project the project the entries belong to
+     * @param entries the entries in which to import the atlas
+     * @param ontology the atlas ontology, with its naming property already set
+     * @param roisetName the name of the registration (usually the ontology name)
+     * @param options the import options
+     * @param nThreads the maximal number of entries processed at the same time, see {@link #getMaxWorkers(long)}
+     * @return the entries in which the atlas has been imported
+     */
+    public static List<ProjectImageEntry<BufferedImage>> loadWarpedAtlasAnnotations(Project<BufferedImage> project, Collection<ProjectImageEntry<BufferedImage>> entries,
+                                                                                    AtlasOntology ontology, String roisetName,
+                                                                                    AtlasImportOptions options, int nThreads) {
+        logger.info("Importing atlas {} in {} entries of project {} with {} workers", roisetName, entries.size(), project.getPath(), nThreads);
+        long start = System.currentTimeMillis();
+        List<ProjectImageEntry<BufferedImage>> imported = processEntries(entries, nThreads, (entry, imageData) -> {
+            PathObject atlasRoot = AtlasTools.loadWarpedAtlasAnnotations(ontology, imageData, entry, roisetName, options);
+            if (atlasRoot == null)
+                logger.warn("No atlas registration {} found for entry {}", roisetName, entry.getImageName());
+            return atlasRoot == null ? null : entry;
+        }, true);
+        logger.info("Atlas imported in {}/{} entries in {} s", imported.size(), entries.size(), (System.currentTimeMillis() - start) / 1000.0);
+        return imported;
+    }
+
+    /**
+     * Computes the atlas region statistics of several entries and sums them per group of entries, for instance
+     * per animal. Each worker computes the statistics of one entry, see {@link AtlasTools#computeAtlasRegionStatistics(AtlasOntology, ImageData)},
+     * so that only the objects of one image per worker are in memory; the per-entry statistics are then merged.
+     * Entries are not saved.
+     * @param entries the entries, in which the atlas regions have been imported
+     * @param ontology the atlas ontology, with its naming property set
+     * @param groupKey the metadata key of the entries which defines the groups (e.g. "Animal"), or null to sum all entries
+     * @param nThreads the maximal number of entries processed at the same time, see {@link #getMaxWorkers(long)}
+     * @return the summed statistics of each group, in the order of the entries; entries without the metadata key are grouped under ""
+     */
+    public static Map<String, AtlasRegionStatistics> computeAtlasRegionStatistics(Collection<ProjectImageEntry<BufferedImage>> entries, AtlasOntology ontology,
+                                                                                  String groupKey, int nThreads) {
+        long start = System.currentTimeMillis();
+        List<Map.Entry<String, AtlasRegionStatistics>> partials = processEntries(entries, nThreads, (entry, imageData) -> {
+            String group = groupKey == null ? "" : entry.getMetadata().getOrDefault(groupKey, "");
+            return Map.entry(group, AtlasTools.computeAtlasRegionStatistics(ontology, imageData));
+        }, false);
+        Map<String, AtlasRegionStatistics> groups = new LinkedHashMap<>();
+        for (Map.Entry<String, AtlasRegionStatistics> partial : partials) {
+            AtlasRegionStatistics statistics = groups.get(partial.getKey());
+            if (statistics == null)
+                groups.put(partial.getKey(), partial.getValue());
+            else
+                statistics.merge(partial.getValue());
+        }
+        logger.info("Atlas region statistics of {} entries reduced to {} groups in {} s", partials.size(), groups.size(), (System.currentTimeMillis() - start) / 1000.0);
+        return groups;
+    }
+
+    /**
+     * Computes the atlas region statistics of the registered entries of a project, summed per group of entries,
+     * and writes one table per group in the project directory, named '[group]-[ontology name]-regions.tsv'
+     * (or '[ontology name]-regions.tsv' for all entries).
+     * @param project the project
+     * @param ontologyName the name of the ontology, without the '-Ontology.json' suffix
+     * @param namingProperty the ontology property used to name the regions in the tables
+     * @param groupKey the metadata key of the entries which defines the groups (e.g. "Animal"), or null to sum all entries
+     * @return the written tables
+     * @throws IOException if a table can't be written
+     */
+    public static List<Path> writeAtlasRegionStatistics(Project<BufferedImage> project, String ontologyName, String namingProperty, String groupKey) throws IOException {
+        AtlasOntology ontology = getAtlasOntology(project, ontologyName);
+        if (ontology == null) {
+            logger.error("Atlas ontology {} not found in project {}", ontologyName, project.getPath());
+            return List.of();
+        }
+        Map<String, AtlasRegionStatistics> groups = computeAtlasRegionStatistics(getRegisteredEntries(project, ontologyName),
+                ontology.withNamingProperty(namingProperty), groupKey, getMaxWorkers(DEFAULT_BYTES_PER_WORKER));
+        List<Path> tables = new ArrayList<>();
+        for (Map.Entry<String, AtlasRegionStatistics> group : groups.entrySet()) {
+            String fileName = (group.getKey().isEmpty() ? "" : group.getKey() + "-") + ontologyName + "-regions.tsv";
+            Path table = project.getPath().getParent().resolve(fileName.replaceAll("[^\\w .()-]", "_"));
+            try (Writer writer = Files.newBufferedWriter(table)) {
+                group.getValue().write(writer);
+            }
+            tables.add(table);
+        }
+        return tables;
+    }
+
+}
@@ -0,0 +1,100 @@
+package qupath.ext.biop.abba;
+
+import org.locationtech.jts.coverage.CoverageSimplifier;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathROIObject;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Simplifies the geometry of imported atlas regions, to lighten their display and the hierarchy operations.<br>
+ * Regions which don't overlap, such as the leaf regions of an import, form a coverage, which is simplified as a whole
+ * with a {@link CoverageSimplifier}, so that the borders shared by neighbouring regions stay consistent.
+ * If they are not a valid coverage, they are simplified one by one with a {@link TopologyPreservingSimplifier}.
+ * The area of each region at full resolution is kept as the {@link #MEASUREMENT_FULL_RESOLUTION_AREA} measurement,
+ * and is used by {@link AtlasRegionStatistics}. The full resolution geometries are written to the {@link AtlasGeometryCache}
+ * of the entry by {@link AtlasTools}, whether or not the import reads the cache.
+ */
+public class AtlasRegionSimplifier {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasRegionSimplifier.class);
+
+    /**
+     * Area of a simplified region at full resolution, in pixels; also the area of the leaf regions of a parent region
+     * imported with an empty geometry, see {@link AtlasImportOptions.ParentRegions#EMPTY}
+     */
+    public static final String MEASUREMENT_FULL_RESOLUTION_AREA = "Atlas full resolution area px^2";
+
+    /**
+     * Simplifies atlas regions in place, as a single coverage.
+     * @param regions atlas regions which don't overlap, e.g. the leaf regions of an import, not yet in a hierarchy
+     * @param tolerance the simplification tolerance, in pixels; nothing is done if it is not positive
+     */
+    public static void simplify(Collection<PathObject> regions, double tolerance) {
+        simplifyCoverages(List.of(regions), tolerance);
+    }
+
+    /**
+     * Simplifies several coverages of atlas regions in place, each of them as a whole,
+     * e.g. the leaf regions and the decoded parent regions of each depth in the ontology.
+     * @param coverages groups of atlas regions which don't overlap, not yet in a hierarchy
+     * @param tolerance the simplification tolerance, in pixels; nothing is done if it is not positive
+     */
+    public static void simplifyCoverages(Collection<? extends Collection<PathObject>> coverages, double tolerance) {
+        if (!(tolerance > 0))
+            return;
+        long start = System.nanoTime();
+        int nRegions = 0;
+        long nVerticesBefore = 0;
+        long nVerticesAfter = 0;
+        int nFallbacks = 0;
+        for (Collection<PathObject> regions : coverages) {
+            List<PathObject> coverage = new ArrayList<>();
+            for (PathObject region : regions) {
+                if (region instanceof PathROIObject && region.hasROI())
+                    coverage.add(region);
+            }
+            if (coverage.isEmpty())
+                continue;
+            nRegions += coverage.size();
+            Geometry[] geometries = new Geometry[coverage.size()];
+            for (int i = 0; i < geometries.length; i++) {
+                PathObject region = coverage.get(i);
+                geometries[i] = region.getROI().getGeometry();
+                nVerticesBefore += geometries[i].getNumPoints();
+                region.getMeasurementList().put(MEASUREMENT_FULL_RESOLUTION_AREA, region.getROI().getArea());
+            }
+            Geometry[] simplified;
+            try {
+                simplified = CoverageSimplifier.simplify(geometries, tolerance);
+            } catch (RuntimeException e) {
+                logger.debug("Regions can't be simplified as a coverage, simplifying them one by one", e);
+                nFallbacks++;
+                simplified = new Geometry[geometries.length];
+                for (int i = 0; i < geometries.length; i++)
+                    simplified[i] = TopologyPreservingSimplifier.simplify(geometries[i], tolerance);
+            }
+            for (int i = 0; i < simplified.length; i++) {
+                PathObject region = coverage.get(i);
+                if (simplified[i] == null || simplified[i].isEmpty()) {
+                    nVerticesAfter += geometries[i].getNumPoints(); // Too small to be simplified, kept as is
+                    continue;
+                }
+                ROI roi = region.getROI();
+                ((PathROIObject) region).setROI(GeometryTools.geometryToROI(simplified[i], roi.getImagePlane()));
+                nVerticesAfter += simplified[i].getNumPoints();
+            }
+        }
+        logger.info("{} atlas regions simplified with a tolerance of {} px in {} ms: {} vertices before, {} after{}",
+                nRegions, tolerance, (System.nanoTime() - start) / 1e6, nVerticesBefore, nVerticesAfter,
+                nFallbacks == 0 ? "" : " (" + nFallbacks + " coverages simplified region by region)");
+    }
+}
@@ -0,0 +1,245 @@
+package qupath.ext.biop.abba;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.abba.struct.AtlasNodeIndex;
+import qupath.ext.biop.abba.struct.AtlasOntology;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Cell counts, areas and densities of the atlas regions, per hemisphere.<br>
+ * Objects are counted once, in the deepest region they belong to, into primitive accumulators indexed by
+ * the position of the region in the {@link AtlasNodeIndex} of the ontology. Counts are then rolled up to the
+ * ancestors in a single reverse pass over the depth-first order, where children always come after their parent.
+ * Region areas are taken from the imported annotations, which already cover their descendants.<br>
+ * Statistics of several images of the same atlas can be merged, see {@link #merge(AtlasRegionStatistics)}.
+ */
+public class AtlasRegionStatistics {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasRegionStatistics.class);
+
+    private static final int N_SIDES = 3; // AtlasLabelMap.SIDE_NONE, SIDE_LEFT and SIDE_RIGHT
+    private static final String[] SIDE_NAMES = {"", "Left", "Right"};
+
+    private final AtlasOntology ontology;
+    private final AtlasNodeIndex index;
+    // Accumulators of region at index i, side s, at position i * N_SIDES + s
+    private final long[] counts;
+    private final double[] areas;
+    private long[] totalCounts; // rolled up, computed on demand
+    private long nUnassigned = 0;
+
+    /**
+     * Creates empty statistics for the regions of an ontology
+     * @param ontology the atlas ontology, whose naming property is used for the region names
+     */
+    public AtlasRegionStatistics(AtlasOntology ontology) {
+        this.ontology = ontology;
+        this.index = ontology.getNodeIndex();
+        this.counts = new long[index.size() * N_SIDES];
+        this.areas = new double[index.size() * N_SIDES];
+    }
+
+    /**
+     * Counts objects in their region. The region of an object is given by its {@link AtlasLabelMap#MEASUREMENT_REGION_ID}
+     * and {@link AtlasLabelMap#MEASUREMENT_SIDE} measurements if present (see {@link AtlasLabelMap} and {@link AtlasLabelVolume}),
+     * otherwise by its parent atlas annotation in the hierarchy.
+     * @param objects the objects to count, usually detections
+     */
+    public void addObjects(Collection<PathObject> objects) {
+        List<PathObject> objectList = new ArrayList<>(objects);
+        int n = objectList.size();
+        int chunkSize = AtlasCoordinates.getChunkSize(n);
+        // Each chunk counts in its own accumulator, merged afterwards
+        List<long[]> partialCounts = IntStream.range(0, (n + chunkSize - 1) / chunkSize).parallel().mapToObj(chunk -> {
+            long[] partial = new long[counts.length + 1]; // Last element: unassigned objects
+            int end = Math.min(n, (chunk + 1) * chunkSize);
+            for (int i = chunk * chunkSize; i < end; i++) {
+                int position = getPosition(objectList.get(i));
+                partial[position < 0 ? counts.length : position]++;
+            }
+            return partial;
+        }).toList();
+        for (long[] partial : partialCounts) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += partial[i];
+            nUnassigned += partial[counts.length];
+        }
+        totalCounts = null;
+    }
+
+    /**
+     * @return the accumulator position of the region of an object, or -1 if it has none
+     */
+    private int getPosition(PathObject object) {
+        MeasurementList ml = object.getMeasurementList();
+        double id = ml.get(AtlasLabelMap.MEASUREMENT_REGION_ID);
+        int side;
+        if (Double.isNaN(id)) {
+            PathObject parent = object.getParent();
+            if (parent == null || !parent.isAnnotation())
+                return -1;
+            id = parent.getMeasurementList().get("ID");
+            if (Double.isNaN(id))
+                return -1;
+            side = AtlasLabelMap.getSide(parent.getPathClass());
+        } else {
+            double sideValue = ml.get(AtlasLabelMap.MEASUREMENT_SIDE);
+            side = Double.isNaN(sideValue) ? AtlasLabelMap.SIDE_NONE : (int) sideValue;
+        }
+        int nodeIndex = index.indexOf((int) id);
+        if (nodeIndex == AtlasNodeIndex.NONE || side < 0 || side >= N_SIDES)
+            return -1;
+        return nodeIndex * N_SIDES + side;
+    }
+
+    /**
+     * Adds the areas of imported atlas regions.
+     * @param regions the atlas annotations, with their 'ID' measurement; other objects are ignored
+     * @param pixelWidthMicrons the pixel width of the image, in microns
+     * @param pixelHeightMicrons the pixel height of the image, in microns
+     */
+    public void addRegionAreas(Collection<PathObject> regions, double pixelWidthMicrons, double pixelHeightMicrons) {
+        for (PathObject region : regions) {
+            if (!region.isAnnotation() || !region.hasROI())
+                continue;
+            double id = region.getMeasurementList().get("ID");
+            if (Double.isNaN(id))
+                continue;
+            int nodeIndex = index.indexOf((int) id);
+            if (nodeIndex == AtlasNodeIndex.NONE)
+                continue;
+            int side = AtlasLabelMap.getSide(region.getPathClass());
+            // Simplified regions keep their area at full resolution, empty parent regions the area of their leaves
+            double fullResolutionArea = region.getMeasurementList().get(AtlasRegionSimplifier.MEASUREMENT_FULL_RESOLUTION_AREA);
+            areas[nodeIndex * N_SIDES + side] += Double.isNaN(fullResolutionArea) ?
+                    region.getROI().getScaledArea(pixelWidthMicrons, pixelHeightMicrons) :
+                    fullResolutionArea * pixelWidthMicrons * pixelHeightMicrons;
+        }
+    }
+
+    /**
+     * Adds the counts and areas of other statistics, for instance of another section of the same brain
+     * @param other statistics of the same ontology
+     */
+    public void merge(AtlasRegionStatistics other) {
+        if (other.counts.length != counts.length)
+            throw new IllegalArgumentException("Statistics of different ontologies can't be merged");
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+            areas[i] += other.areas[i];
+        }
+        nUnassigned += other.nUnassigned;
+        totalCounts = null;
+    }
+
+    private long[] getTotalCounts() {
+        long[] totals = totalCounts;
+        if (totals == null) {
+            totals = counts.clone();
+            // Reverse depth-first order: all descendants of a region are summed before the region is added to its parent
+            for (int i = index.size() - 1; i > 0; i--) {
+                int parent = index.getParentIndexAt(i);
+                if (parent == AtlasNodeIndex.NONE)
+                    continue;
+                for (int s = 0; s < N_SIDES; s++)
+                    totals[parent * N_SIDES + s] += totals[i * N_SIDES + s];
+            }
+            totalCounts = totals;
+        }
+        return totals;
+    }
+
+    private int getPosition(int id, int side) {
+        int nodeIndex = index.indexOf(id);
+        if (nodeIndex == AtlasNodeIndex.NONE)
+            throw new IllegalArgumentException("Unknown region id " + id);
+        return nodeIndex * N_SIDES + side;
+    }
+
+    /**
+     * @param id the ontology id of a region
+     * @param side {@link AtlasLabelMap#SIDE_NONE}, {@link AtlasLabelMap#SIDE_LEFT} or {@link AtlasLabelMap#SIDE_RIGHT}
+     * @return the number of objects in this region, excluding the ones in its descendants
+     */
+    public long getCount(int id, int side) {
+        return counts[getPosition(id, side)];
+    }
+
+    /**
+     * @param id the ontology id of a region
+     * @param side {@link AtlasLabelMap#SIDE_NONE}, {@link AtlasLabelMap#SIDE_LEFT} or {@link AtlasLabelMap#SIDE_RIGHT}
+     * @return the number of objects in this region, including the ones in its descendants
+     */
+    public long getTotalCount(int id, int side) {
+        return getTotalCounts()[getPosition(id, side)];
+    }
+
+    /**
+     * @param id the ontology id of a region
+     * @param side {@link AtlasLabelMap#SIDE_NONE}, {@link AtlasLabelMap#SIDE_LEFT} or {@link AtlasLabelMap#SIDE_RIGHT}
+     * @return the area of the region, in square microns
+     */
+    public double getArea(int id, int side) {
+        return areas[getPosition(id, side)];
+    }
+
+    /**
+     * @param id the ontology id of a region
+     * @param side {@link AtlasLabelMap#SIDE_NONE}, {@link AtlasLabelMap#SIDE_LEFT} or {@link AtlasLabelMap#SIDE_RIGHT}
+     * @return the number of objects per square millimeter in the region, NaN if its area is unknown
+     */
+    public double getDensity(int id, int side) {
+        int position = getPosition(id, side);
+        double area = areas[position];
+        return area > 0 ? getTotalCounts()[position] / (area / 1e6) : Double.NaN;
+    }
+
+    /**
+     * @return the number of counted objects outside of any atlas region
+     */
+    public long getUnassignedCount() {
+        return nUnassigned;
+    }
+
+    /**
+     * Writes the statistics as a tab separated table, one row per region and side with objects or an area,
+     * in the depth-first order of the ontology.
+     * Columns: ID, Name, Parent ID, Depth, Side, Count (in the region only), Total count (including descendants),
+     * Area um^2, Density per mm^2.
+     * @param writer where to write the table; it is not closed
+     * @throws IOException if the table can't be written
+     */
+    public void write(Writer writer) throws IOException {
+        long[] totals = getTotalCounts();
+        String namingProperty = ontology.getNamingProperty();
+        PrintWriter out = new PrintWriter(writer);
+        out.println("ID\tName\tParent ID\tDepth\tSide\tCount\tTotal count\tArea um^2\tDensity per mm^2");
+        for (int i = 0; i < index.size(); i++) {
+            int id = index.getIdAt(i);
+            String name = index.getNodeAt(i).data().get(namingProperty);
+            int parent = index.getParentIndexAt(i);
+            for (int s = 0; s < N_SIDES; s++) {
+                int position = i * N_SIDES + s;
+                if (totals[position] == 0 && areas[position] == 0)
+                    continue;
+                double density = areas[position] > 0 ? totals[position] / (areas[position] / 1e6) : Double.NaN;
+                out.println(id + "\t" + (name == null ? id : name) + "\t" + (parent == AtlasNodeIndex.NONE ? "" : index.getIdAt(parent))
+                        + "\t" + index.getDepthAt(i) + "\t" + SIDE_NAMES[s] + "\t" + counts[position] + "\t" + totals[position]
+                        + "\t" + areas[position] + "\t" + density);
+            }
+        }
+        out.flush();
+        if (out.checkError())
+            throw new IOException("Error writing the atlas region statistics");
+    }
+}
@@ -1,14 +1,20 @@
 package qupath.ext.biop.abba;
 
 import ij.gui.Roi;
+import ij.process.FloatPolygon;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.InvertibleRealTransformSequence;
 import net.imglib2.realtransform.RealTransform;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.biop.abba.struct.AtlasHelper;
 import qupath.ext.biop.abba.struct.AtlasNode;
+import qupath.ext.biop.abba.struct.AtlasNodeIndex;
 import qupath.ext.biop.abba.struct.AtlasOntology;
 import qupath.ext.warpy.Warpy;
 import qupath.imagej.tools.IJTools;
@@ -16,16 +22,18 @@ import qupath.lib.common.ColorTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServerBuilder;
 import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.images.servers.RotatedImageServer;
 import qupath.lib.measurements.MeasurementList;
 import qupath.lib.measurements.MeasurementListFactory;
 import qupath.lib.objects.PathObject;
-import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.ROIs;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.interfaces.ROI;
@@ -35,24 +43,43 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
 
 public class AtlasTools {
 
     final static Logger logger = LoggerFactory.getLogger(AtlasTools.class);
 
+    /**
+     * Metadata key of the geometry fingerprint of an imported region, used by incremental re-imports
+     */
+    public static final String METADATA_FINGERPRINT = "ABBA geometry fingerprint";
+
     static private PathObject createAnnotationHierarchy(List<PathObject> annotations) {
 
         // Map the ID of the annotation to ease finding parents
@@ -81,11 +108,33 @@ public class AtlasTools {
     }
 
     static PathObject getWarpedAtlasRegions(AtlasOntology ontology, ImageData<BufferedImage> imageData, String roisetName, boolean splitLeftRight) {
+        return getWarpedAtlasRegions(ontology, imageData, QP.getProject().getEntry(imageData), roisetName, splitLeftRight);
+    }
+
+    static PathObject getWarpedAtlasRegions(AtlasOntology ontology, ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, String roisetName, boolean splitLeftRight) {
+        return getWarpedAtlasRegions(ontology, imageData, entry, roisetName, new AtlasImportOptions().splitLeftRight(splitLeftRight).geometryCache(false));
+    }
+
+    /**
+     * Converts the atlas regions as set by the import options: split, read from the {@link AtlasGeometryCache} of the entry
+     * (and written to it on a miss), and simplified.
+     */
+    static PathObject getWarpedAtlasRegions(AtlasOntology ontology, ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, String roisetName, AtlasImportOptions options) {
 
-        List<PathObject> annotations = getFlattenedWarpedAtlasRegions(ontology, imageData, roisetName, splitLeftRight);
+        List<PathObject> annotations = getFlattenedWarpedAtlasRegions(ontology, imageData, entry, roisetName, options, Map.of(), null);
 
         if (annotations == null) return null;
 
+        return buildAtlasHierarchy(annotations, options.isSplitLeftRight());
+    }
+
+    /**
+     * Links flattened atlas regions into the atlas hierarchy, under a locked 'Root' annotation
+     * @param annotations the flattened atlas regions
+     * @param splitLeftRight whether the regions have been split between the left and right hemispheres
+     * @return the root annotation of the atlas, or null if there is no region
+     */
+    private static PathObject buildAtlasHierarchy(List<PathObject> annotations, boolean splitLeftRight) {
         PathObject atlasRoot;
         if (splitLeftRight) {
             List<PathObject> annotationsLeft = annotations
@@ -128,32 +177,15 @@ public class AtlasTools {
     }
 
     static Optional<RotatedImageServer.Rotation> getLazyRotation(ImageServerBuilder.ServerBuilder<?> serverBuilder) {
-        try {
-            Field rotationField = serverBuilder.getClass().getDeclaredField("rotation");
-            rotationField.setAccessible(true);
-            return Optional.of((RotatedImageServer.Rotation) rotationField.get(serverBuilder));
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            return Optional.empty();
-        }
+        return AtlasGeometryContext.getRotation(serverBuilder);
     }
 
     static Optional<ImageServerBuilder.ServerBuilder<?>> getLazyWrappedBuilder(ImageServerBuilder.ServerBuilder<?> serverBuilder) {
-        try {
-            Field builderField = serverBuilder.getClass().getDeclaredField("builder");
-            builderField.setAccessible(true);
-            return Optional.of((ImageServerBuilder.ServerBuilder<?>) builderField.get(serverBuilder));
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            return Optional.empty();
-        }
+        return AtlasGeometryContext.getWrappedBuilder(serverBuilder);
     }
 
     static List<ImageServerBuilder.ServerBuilder<?>> getLazyNestedBuilders(ImageData<?> imageData) {
-        Optional<? extends ImageServerBuilder.ServerBuilder<?>> serverBuilder = Optional.of(imageData.getServerBuilder());
-        List<ImageServerBuilder.ServerBuilder<?>> builders = new ArrayList<>();
-        do {
-            serverBuilder.ifPresent(builders::add);
-        } while ((serverBuilder = getLazyWrappedBuilder(serverBuilder.get())).isPresent());
-        return builders.reversed(); // the order is from the innermost server to the outermost
+        return AtlasGeometryContext.of(imageData).getBuilders(); // the order is from the innermost server to the outermost
     }
 
     private static MeasurementList duplicateMeasurements(MeasurementList measurements) {
@@ -166,6 +198,93 @@ public class AtlasTools {
         return list;
     }
 
+    /**
+     * Splits each atlas region between the left and the right hemispheres.<br>
+     * Regions are independent from each other, so they are intersected with the hemispheres in parallel.
+     * Most regions lie within a single hemisphere: they are assigned to it without any boolean operation,
+     * only the regions crossing the midline are intersected.
+     * The returned list keeps the order of the input regions, the left part of a region coming before its right part.
+     * @param annotations the atlas regions to split
+     * @param leftROI the left hemisphere, or null if there is none
+     * @param rightROI the right hemisphere, or null if there is none
+     * @return the non-empty left and right parts of each region
+     */
+    static List<PathObject> splitLeftRight(List<PathObject> annotations, ROI leftROI, ROI rightROI) {
+        Hemisphere left = leftROI == null ? null : new Hemisphere(leftROI);
+        Hemisphere right = rightROI == null ? null : new Hemisphere(rightROI);
+        List<PathObject> splitObjects = annotations
+                .parallelStream()
+                .map(annotation -> splitLeftRight(annotation, left, right))
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+        logger.debug("Hemisphere split: {} regions, {} intersections computed",
+                annotations.size(),
+                (left == null ? 0 : left.nIntersections.get()) + (right == null ? 0 : right.nIntersections.get()));
+        return splitObjects;
+    }
+
+    private static List<PathObject> splitLeftRight(PathObject annotation, Hemisphere left, Hemisphere right) {
+        List<PathObject> splitObjects = new ArrayList<>(2);
+        Geometry geometry = annotation.getROI().getGeometry();
+        if (left!=null) {
+            ROI shapeLeft = left.intersect(annotation.getROI(), geometry);
+            if (shapeLeft != null && !shapeLeft.isEmpty()) {
+                splitObjects.add(createSideObject(annotation, shapeLeft, "Left"));
+            }
+        }
+
+        if (right!=null) {
+            ROI shapeRight = right.intersect(annotation.getROI(), geometry);
+            if (shapeRight != null && !shapeRight.isEmpty()) {
+                splitObjects.add(createSideObject(annotation, shapeRight, "Right"));
+            }
+        }
+        return splitObjects;
+    }
+
+    /**
+     * A hemisphere ROI with its envelope and prepared geometry, to test cheaply
+     * whether a region lies inside, outside or across its border.
+     * The prepared geometry is thread-safe, so a hemisphere can be shared by the split workers.
+     */
+    private static class Hemisphere {
+        final ROI roi;
+        final Envelope envelope;
+        final PreparedGeometry prepared;
+        final AtomicInteger nIntersections = new AtomicInteger();
+
+        Hemisphere(ROI roi) {
+            this.roi = roi;
+            Geometry geometry = roi.getGeometry();
+            this.envelope = geometry.getEnvelopeInternal();
+            this.prepared = PreparedGeometryFactory.prepare(geometry);
+        }
+
+        /**
+         * @return the part of the region within this hemisphere, or null if the region is outside of it
+         */
+        ROI intersect(ROI region, Geometry geometry) {
+            if (!envelope.intersects(geometry.getEnvelopeInternal()))
+                return null; // Bounding boxes are disjoint
+            if (prepared.contains(geometry))
+                return region; // Wholly inside: no need to intersect
+            if (!prepared.intersects(geometry))
+                return null; // Wholly outside
+            nIntersections.incrementAndGet();
+            return RoiTools.combineROIs(roi, region, RoiTools.CombineOp.INTERSECT);
+        }
+    }
+
+    private static PathObject createSideObject(PathObject annotation, ROI shape, String side) {
+        PathObject object = PathObjects.createAnnotationObject(shape, annotation.getPathClass(), duplicateMeasurements(annotation.getMeasurementList()));
+        object.setName(annotation.getName());
+        object.setPathClass(QP.getDerivedPathClass(QP.getPathClass(side), annotation.getPathClass().getName()));
+        object.setColor(annotation.getColor());
+        object.getMetadata().putAll(annotation.getMetadata());
+        object.setLocked(true);
+        return object;
+    }
+
     public static List<String> getAvailableAtlasOntologyFiles() {
         String suffix = "-Ontology.json";
         try {
@@ -224,53 +343,142 @@ public class AtlasTools {
             logger.error("ABBA transformation file not found for entry "+entry);
             return null;
         }
-        RealTransform transformWithoutServerTransform = Warpy.getRealTransform(fTransform);
+        // Handles rotated image server
+        AffineTransform3D transform = AtlasGeometryContext.of(imageData).getTransform3D();
 
-        AffineTransform3D transform = new AffineTransform3D();
-        for (ImageServerBuilder.ServerBuilder<?> serverBuilder: getLazyNestedBuilders(imageData)) {
-            // The roi will need to be transformed before being imported
-            Optional<RotatedImageServer.Rotation> rotation;
-            if ((rotation = getLazyRotation(serverBuilder)).isEmpty())
-                // the server is not rotated
-                continue;
-            ImageServerMetadata metadata = imageData.getServerMetadata();
-            switch (rotation.get()) {
-                case ROTATE_NONE: // No rotation.
-                    break;
-                case ROTATE_90:
-                    // Rotate 90 degrees clockwise.
-                    transform.set(new double[]{
-                            0.0,-1.0, 0.0, metadata.getWidth(),
-                            1.0, 0.0, 0.0, 0.0,
-                            0.0, 0.0, 1.0, 0.0
-                    });
-                    break;
-                case ROTATE_180: // Rotate 180 degrees.
-                    transform.set(new double[]{
-                           -1.0, 0.0, 0.0, metadata.getWidth(),
-                            0.0,-1.0, 0.0, metadata.getHeight(),
-                            0.0, 0.0, 1.0, 0.0
-                    });
-                    break;
-                case ROTATE_270: // Rotate 270 degrees
-                    // Rotate 90 degrees clockwise.
-                    transform.set(new double[]{
-                            0.0, 1.0, 0.0, 0.0,
-                           -1.0, 0.0, 0.0, metadata.getHeight(),
-                            0.0, 0.0, 1.0, 0.0
-                    });
-                    break;
-                default:
-                    System.err.println("Unknown rotation for rotated image server: " + rotation.get());
-            }
+        // Parsed once per transformation file, see AtlasTransformCache
+        return AtlasTransformCache.getAtlasToPixelTransform(fTransform, transform);
+
+    }
+
+    /**
+     * Computes the atlas coordinates of the centroids of objects, using the first registration found for the image.
+     * @param imageData the data of the registered image
+     * @param objects the objects to locate in the atlas, usually the detections
+     * @return the atlas coordinates, or null if the image has no registration
+     */
+    public static AtlasCoordinates computeAtlasCoordinates(ImageData<BufferedImage> imageData, Collection<PathObject> objects) {
+        List<String> registrations = getAvailableAtlasRegistration(imageData);
+        if (registrations.isEmpty()) {
+            logger.error("No atlas registration found for image {}", imageData.getServerMetadata().getName());
+            return null;
         }
+        return computeAtlasCoordinates(imageData, objects, registrations.get(0));
+    }
 
-        InvertibleRealTransformSequence irts = new InvertibleRealTransformSequence();
-        irts.add((InvertibleRealTransform) transformWithoutServerTransform);
-        irts.add(transform);
+    /**
+     * Computes the atlas coordinates of the centroids of objects. The objects are transformed in parallel,
+     * see {@link AtlasCoordinates#compute(Collection, RealTransform)}.
+     * @param imageData the data of the registered image
+     * @param objects the objects to locate in the atlas, usually the detections
+     * @param registrationName the name of the registration
+     * @return the atlas coordinates, or null if the registration is not found
+     */
+    public static AtlasCoordinates computeAtlasCoordinates(ImageData<BufferedImage> imageData, Collection<PathObject> objects, String registrationName) {
+        RealTransform atlasToPixel = getAtlasToPixelTransform(imageData, registrationName);
+        if (atlasToPixel == null)
+            return null;
+        RealTransform pixelToAtlas = ((InvertibleRealTransform) atlasToPixel).inverse();
+        ImageServerMetadata metadata = imageData.getServerMetadata();
+        double[] affine = AtlasCoordinates.getAffineCoefficients(pixelToAtlas, metadata.getWidth(), metadata.getHeight());
+        if (affine != null)
+            return AtlasCoordinates.computeAffine(objects, affine);
+        return AtlasCoordinates.compute(objects, pixelToAtlas);
+    }
+
+    /**
+     * Computes approximated atlas coordinates of the centroids of objects. The pixel to atlas transform is sampled
+     * once on a grid covering the image, see {@link AtlasCoordinateGrid}, which is refined until the interpolation
+     * error is below the tolerance. The achieved error is given by {@link AtlasCoordinates#getMaxErrorMicrons()}.
+     * @param imageData the data of the registered image
+     * @param objects the objects to locate in the atlas, usually the detections
+     * @param registrationName the name of the registration
+     * @param toleranceMicrons the maximal interpolation error, in microns
+     * @return the atlas coordinates, or null if the registration is not found
+     */
+    public static AtlasCoordinates computeAtlasCoordinates(ImageData<BufferedImage> imageData, Collection<PathObject> objects, String registrationName, double toleranceMicrons) {
+        RealTransform atlasToPixel = getAtlasToPixelTransform(imageData, registrationName);
+        if (atlasToPixel == null)
+            return null;
+        RealTransform pixelToAtlas = ((InvertibleRealTransform) atlasToPixel).inverse();
+        ImageServerMetadata metadata = imageData.getServerMetadata();
+        double[] affine = AtlasCoordinates.getAffineCoefficients(pixelToAtlas, metadata.getWidth(), metadata.getHeight());
+        if (affine != null)
+            return AtlasCoordinates.computeAffine(objects, affine); // Exact, and faster than the grid
+        AtlasCoordinateGrid grid = AtlasCoordinateGrid.build(pixelToAtlas, metadata.getWidth(), metadata.getHeight(), toleranceMicrons);
+        return AtlasCoordinates.compute(objects, pixelToAtlas, grid);
+    }
+
+    /**
+     * Computes the atlas coordinates of objects and saves them in a columnar store in the entry folder,
+     * instead of adding them as measurements, see {@link AtlasCoordinateStore}.
+     * @param imageData the data of the registered image
+     * @param entry the project entry of the image
+     * @param objects the objects to locate in the atlas, usually the detections
+     * @param registrationName the name of the registration, also used to name the store
+     * @param offHeap whether to keep the returned store outside of the Java heap
+     * @return the store, or null if the registration is not found
+     * @throws IOException if the store can't be written
+     */
+    public static AtlasCoordinateStore storeAtlasCoordinates(ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, Collection<PathObject> objects,
+                                                             String registrationName, boolean offHeap) throws IOException {
+        AtlasCoordinates coordinates = computeAtlasCoordinates(imageData, objects, registrationName);
+        if (coordinates == null)
+            return null;
+        AtlasCoordinateStore store = AtlasCoordinateStore.of(coordinates, offHeap);
+        store.write(AtlasCoordinateStore.getPath(entry, registrationName));
+        return store;
+    }
+
+    /**
+     * @param entry a project entry
+     * @param registrationName the name of the registration
+     * @param offHeap whether to keep the store outside of the Java heap
+     * @return the atlas coordinates stored for this entry by {@link #storeAtlasCoordinates}, or null if there is none
+     * @throws IOException if the store can't be read
+     */
+    public static AtlasCoordinateStore readAtlasCoordinates(ProjectImageEntry<BufferedImage> entry, String registrationName, boolean offHeap) throws IOException {
+        Path path = AtlasCoordinateStore.getPath(entry, registrationName);
+        return Files.exists(path) ? AtlasCoordinateStore.read(path, offHeap) : null;
+    }
 
-        return irts;
+    /**
+     * Assigns objects to atlas regions directly from an atlas label volume, without importing the region annotations:
+     * the atlas coordinates of the objects are computed with the first registration of the image, then
+     * looked up in the volume. See {@link AtlasLabelVolume#assignRegions(AtlasCoordinates, AtlasOntology)}.
+     * @param imageData the data of the registered image
+     * @param objects the objects to assign, usually the detections
+     * @param volume the label volume of the atlas
+     * @param ontology the ontology of the atlas, with its naming property set
+     * @return the atlas coordinates of the objects, or null if the image has no registration
+     */
+    public static AtlasCoordinates assignAtlasRegions(ImageData<BufferedImage> imageData, Collection<PathObject> objects, AtlasLabelVolume volume, AtlasOntology ontology) {
+        AtlasCoordinates coordinates = computeAtlasCoordinates(imageData, objects);
+        if (coordinates == null)
+            return null;
+        volume.assignRegions(coordinates, ontology);
+        return coordinates;
+    }
 
+    /**
+     * Computes the object counts, areas and densities of the atlas regions of an image, per hemisphere.
+     * The areas come from the atlas annotations imported for this ontology, the counts from the detections,
+     * see {@link AtlasRegionStatistics#addObjects(Collection)}. If the atlas has been imported several times,
+     * only the first import is measured, as in {@link #assignAtlasRegions(ImageData, String, Collection, double)}.
+     * @param ontology the atlas ontology, with its naming property set
+     * @param imageData the data of the image, in which the atlas regions have been imported
+     * @return the statistics of the atlas regions
+     */
+    public static AtlasRegionStatistics computeAtlasRegionStatistics(AtlasOntology ontology, ImageData<BufferedImage> imageData) {
+        long start = System.nanoTime();
+        AtlasRegionStatistics statistics = new AtlasRegionStatistics(ontology);
+        PixelCalibration calibration = imageData.getServerMetadata().getPixelCalibration();
+        PathObject atlasRoot = getAtlasRoot(imageData, ontology.getName());
+        if (atlasRoot != null)
+            statistics.addRegionAreas(atlasRoot.getDescendantObjects(null), calibration.getPixelWidthMicrons(), calibration.getPixelHeightMicrons());
+        statistics.addObjects(imageData.getHierarchy().getDetectionObjects());
+        logger.info("Atlas region statistics of {} computed in {} ms", imageData.getServerMetadata().getName(), (System.nanoTime() - start) / 1e6);
+        return statistics;
     }
 
     public static Set<String> getNamingProperties(AtlasOntology ontology) {
@@ -290,29 +498,240 @@ public class AtlasTools {
             return null;
         }
 
-        ontology.setNamingProperty(namingProperty);
-
         // Now we have all we need, the name whether to split left and right
-        return loadWarpedAtlasAnnotations(ontology, imageData, ontologyName, splitLeftRight, overwrite);
+        return loadWarpedAtlasAnnotations(ontology.withNamingProperty(namingProperty), imageData, ontologyName, splitLeftRight, overwrite);
     }
 
     public static PathObject loadWarpedAtlasAnnotations(AtlasOntology ontology, ImageData<BufferedImage> imageData, String roisetName, boolean splitLeftRight, boolean overwrite) {
-        PathObject atlasRoot = getWarpedAtlasRegions(ontology, imageData, roisetName, splitLeftRight);
+        return loadWarpedAtlasAnnotations(ontology, imageData, QP.getProject().getEntry(imageData), roisetName, splitLeftRight, overwrite);
+    }
+
+    /**
+     * Imports the atlas regions of a registered image into its hierarchy.<br>
+     * Unlike the other variants, the project entry is given explicitly, so that this method
+     * can be used on images which are not the current one (e.g. from a batch over a project).
+     * @param ontology the atlas ontology, with its naming property already set
+     * @param imageData the data of the image in which to import the regions
+     * @param entry the project entry of the image, which holds the ABBA RoiSet
+     * @param roisetName the name of the registration (usually the ontology name)
+     * @param splitLeftRight whether to split the regions between the left and right hemispheres
+     * @param overwrite whether to remove the previously imported regions of the same atlas
+     * @return the root annotation of the imported atlas, or null if no registration was found
+     */
+    public static PathObject loadWarpedAtlasAnnotations(AtlasOntology ontology, ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, String roisetName, boolean splitLeftRight, boolean overwrite) {
+        return loadWarpedAtlasAnnotations(ontology, imageData, entry, roisetName,
+                new AtlasImportOptions().splitLeftRight(splitLeftRight).overwrite(overwrite));
+    }
+
+    /**
+     * Imports the atlas regions of a registered image into its hierarchy, see {@link AtlasImportOptions}.
+     * @param ontology the atlas ontology, with its naming property already set
+     * @param imageData the data of the image in which to import the regions
+     * @param entry the project entry of the image, which holds the ABBA RoiSet
+     * @param roisetName the name of the registration (usually the ontology name)
+     * @param options the import options
+     * @return the root annotation of the imported atlas, or null if no registration was found
+     */
+    public static PathObject loadWarpedAtlasAnnotations(AtlasOntology ontology, ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, String roisetName, AtlasImportOptions options) {
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        List<PathObject> previousAtlases = options.isOverwrite() || options.isIncremental() ? getAtlasRoots(hierarchy, ontology.getName()) : List.of();
+        if (options.isIncremental() && !previousAtlases.isEmpty())
+            return reimportWarpedAtlasAnnotations(ontology, imageData, entry, roisetName, options, previousAtlases);
+        PathObject atlasRoot = getWarpedAtlasRegions(ontology, imageData, entry, roisetName, options);
         if (atlasRoot == null) return null;
+        atlasRoot.setPathClass(QP.getPathClass(ontology.getName()));
+        // The hierarchy can't resolve objects into regions with an empty geometry: they are assigned with a label map
+        if (options.isBulkInsert() || (options.getParentRegions() == AtlasImportOptions.ParentRegions.EMPTY)) {
+            insertAtlasInBulk(imageData, atlasRoot, previousAtlases, options.getLabelMapDownsample());
+        } else {
+            if (!previousAtlases.isEmpty())
+                hierarchy.removeObjects(previousAtlases, false);
+            hierarchy.addObject(atlasRoot);
+            hierarchy.fireHierarchyChangedEvent(AtlasTools.class);
+        }
+        return atlasRoot;
+    }
+
+    /**
+     * Attaches a prebuilt atlas to the hierarchy with a single change event. The detections at the root of the hierarchy
+     * or in the replaced atlases are first moved to the new region containing their centroid, found with an {@link AtlasLabelMap},
+     * so that the hierarchy doesn't resolve the parent of each object. Detections in other annotations are not moved.
+     * @param imageData the data of the image
+     * @param atlasRoot the root annotation of the atlas to insert, not yet in the hierarchy
+     * @param previousAtlases the root annotations of the atlases to remove
+     * @param downsample the downsample of the label map
+     */
+    static void insertAtlasInBulk(ImageData<BufferedImage> imageData, PathObject atlasRoot, Collection<PathObject> previousAtlases, double downsample) {
+        long start = System.nanoTime();
         PathObjectHierarchy hierarchy = imageData.getHierarchy();
-        PathClass atlasClass = QP.getPathClass(ontology.getName());
-        List<PathObject> previousAtlases = QP.getAnnotationObjects()
+        PathObject hierarchyRoot = hierarchy.getRootObject();
+        Set<PathObject> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PathObject previousAtlas : previousAtlases) {
+            replaced.add(previousAtlas);
+            for (PathObject descendant : previousAtlas.getDescendantObjects(null)) {
+                if (descendant.isAnnotation())
+                    replaced.add(descendant);
+            }
+        }
+        List<PathObject> detections = hierarchy.getDetectionObjects()
                 .stream()
-                .filter(o -> "Root".equals(o.getName()) && o.getPathClass() != null && o.getPathClass().equals(atlasClass))
+                .filter(d -> d.getParent() == hierarchyRoot || replaced.contains(d.getParent()))
                 .toList();
-        if (overwrite && !previousAtlases.isEmpty())
-            hierarchy.removeObjects(previousAtlases, false);
-        atlasRoot.setPathClass(atlasClass);
-        hierarchy.addObject(atlasRoot);
+
+        int nAssigned = moveToRegions(imageData, atlasRoot, detections, downsample);
+        for (PathObject previousAtlas : previousAtlases)
+            hierarchy.removeObjectWithoutUpdate(previousAtlas, false);
+        hierarchyRoot.addChildObject(atlasRoot);
+        hierarchy.fireHierarchyChangedEvent(AtlasTools.class);
+        logger.info("Atlas inserted in bulk in {} ms: {} detections assigned to regions, {} atlases replaced",
+                (System.nanoTime() - start) / 1e6, nAssigned, previousAtlases.size());
+    }
+
+    /**
+     * Moves objects to the atlas region containing their centroid, found with an {@link AtlasLabelMap}, without any hierarchy event.
+     * Objects outside of the atlas are moved to the root of the hierarchy.
+     * @return the number of objects moved to a region
+     */
+    private static int moveToRegions(ImageData<BufferedImage> imageData, PathObject atlasRoot, List<PathObject> objects, double downsample) {
+        PathObject hierarchyRoot = imageData.getHierarchy().getRootObject();
+        ImageServerMetadata metadata = imageData.getServerMetadata();
+        PathObject[] regions = AtlasLabelMap.build(atlasRoot, metadata.getWidth(), metadata.getHeight(), downsample).getRegions(objects);
+        Map<PathObject, List<PathObject>> childrenOfRegion = new IdentityHashMap<>();
+        List<PathObject> outside = new ArrayList<>();
+        for (int i = 0; i < regions.length; i++) {
+            if (regions[i] != null)
+                childrenOfRegion.computeIfAbsent(regions[i], r -> new ArrayList<>()).add(objects.get(i));
+            else if (objects.get(i).getParent() != hierarchyRoot)
+                outside.add(objects.get(i));
+        }
+        // Adding a child detaches it from its previous parent
+        childrenOfRegion.forEach(PathObject::addChildObjects);
+        hierarchyRoot.addChildObjects(outside);
+        return regions.length - (int) Arrays.stream(regions).filter(Objects::isNull).count();
+    }
+
+    /**
+     * Re-imports an atlas over a previous import of the same atlas: the regions whose geometry fingerprint is unchanged
+     * are kept, with their measurements and child objects, and only renamed and recolored in place; the other regions
+     * are converted again. The objects of the replaced regions, and the detections of the reused regions which have
+     * new child regions, are moved to the new regions; annotations drawn in the reused regions are kept.
+     * The hierarchy is updated with a single change event.
+     */
+    private static PathObject reimportWarpedAtlasAnnotations(AtlasOntology ontology, ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, String roisetName,
+                                                             AtlasImportOptions options, List<PathObject> previousAtlases) {
+        long start = System.nanoTime();
+        Map<Integer, List<PathObject>> previousRegions = new HashMap<>();
+        for (PathObject previousAtlas : previousAtlases) {
+            for (PathObject region : previousAtlas.getDescendantObjects(null)) {
+                if (region.isAnnotation() && region.getMeasurementList().containsKey("ID") && region.getMetadata().containsKey(METADATA_FINGERPRINT))
+                    previousRegions.computeIfAbsent((int) region.getMeasurementList().get("ID"), id -> new ArrayList<>()).add(region);
+            }
+        }
+        Set<PathObject> reused = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<PathObject> annotations = getFlattenedWarpedAtlasRegions(ontology, imageData, entry, roisetName, options, previousRegions, reused);
+        if (annotations == null) return null;
+        if ((options.getSimplifyTolerance() > 0) && !reused.isEmpty()
+                && annotations.stream().anyMatch(region -> !reused.contains(region) && region.getMetadata().containsKey(METADATA_FINGERPRINT))) {
+            // The changed regions can't be simplified consistently with their reused neighbours,
+            // whose geometry at full resolution is lost: all the regions are converted again
+            logger.info("Simplified atlas regions changed, all the regions are converted again");
+            reused.clear();
+            annotations = getFlattenedWarpedAtlasRegions(ontology, imageData, entry, roisetName, options, Map.of(), reused);
+            if (annotations == null) return null;
+        }
+
+        // Detach the replaced regions from the reused ones, keeping aside the objects they contain
+        List<PathObject> orphans = new ArrayList<>();
+        for (PathObject previousAtlas : previousAtlases) {
+            for (PathObject object : previousAtlas.getDescendantObjects(null)) {
+                PathObject parent = object.getParent();
+                boolean isRegion = object.isAnnotation() && object.getMeasurementList().containsKey("ID");
+                boolean inReplacedRegion = !reused.contains(parent) && ((parent == previousAtlas) || parent.getMeasurementList().containsKey("ID"));
+                if (!isRegion && inReplacedRegion)
+                    orphans.add(object); // Its own children move with it
+            }
+        }
+        for (PathObject region : reused) {
+            for (PathObject child : region.getChildObjectsAsArray()) {
+                // Other annotations, e.g. drawn by the user in the region, stay where they are
+                if (child.isAnnotation() && child.getMeasurementList().containsKey("ID") && !reused.contains(child))
+                    region.removeChildObject(child);
+            }
+        }
+
+        PathObject atlasRoot = buildAtlasHierarchy(annotations, options.isSplitLeftRight());
+        if (atlasRoot == null) return null;
+        atlasRoot.setPathClass(QP.getPathClass(ontology.getName()));
+        // The detections of a reused region may now lie in one of its new child regions: they are located again
+        Set<PathObject> parentsOfNewRegions = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PathObject region : annotations) {
+            if (!reused.contains(region) && reused.contains(region.getParent()))
+                parentsOfNewRegions.add(region.getParent());
+        }
+        for (PathObject region : parentsOfNewRegions) {
+            for (PathObject child : region.getChildObjectsAsArray()) {
+                if (!child.isAnnotation())
+                    orphans.add(child);
+            }
+        }
+        int nMoved = moveToRegions(imageData, atlasRoot, orphans, options.getLabelMapDownsample());
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        for (PathObject previousAtlas : previousAtlases)
+            hierarchy.removeObjectWithoutUpdate(previousAtlas, false);
+        hierarchy.getRootObject().addChildObject(atlasRoot);
         hierarchy.fireHierarchyChangedEvent(AtlasTools.class);
+        logger.info("Atlas re-imported in {} ms: {}/{} regions reused, {} objects of replaced regions located again",
+                (System.nanoTime() - start) / 1e6, reused.size(), annotations.size(), nMoved);
         return atlasRoot;
     }
 
+    /**
+     * @param hierarchy the hierarchy of an image
+     * @param ontologyName the name of the atlas ontology
+     * @return the root annotations of the atlases of this ontology imported in the hierarchy
+     */
+    public static List<PathObject> getAtlasRoots(PathObjectHierarchy hierarchy, String ontologyName) {
+        PathClass atlasClass = QP.getPathClass(ontologyName);
+        return hierarchy.getAnnotationObjects()
+                .stream()
+                .filter(o -> "Root".equals(o.getName()) && o.getPathClass() != null && o.getPathClass().equals(atlasClass))
+                .toList();
+    }
+
+    /**
+     * @return the first atlas of this ontology imported in the image, or null if there is none.
+     * A warning is logged if the atlas has been imported several times (import without overwrite)
+     */
+    private static PathObject getAtlasRoot(ImageData<BufferedImage> imageData, String ontologyName) {
+        List<PathObject> atlasRoots = getAtlasRoots(imageData.getHierarchy(), ontologyName);
+        if (atlasRoots.isEmpty()) {
+            logger.error("No atlas {} imported in image {}", ontologyName, imageData.getServerMetadata().getName());
+            return null;
+        }
+        if (atlasRoots.size() > 1)
+            logger.warn("Atlas {} imported {} times in image {}, only the first import is used", ontologyName, atlasRoots.size(), imageData.getServerMetadata().getName());
+        return atlasRoots.get(0);
+    }
+
+    /**
+     * Assigns objects to the imported atlas regions containing their centroid, through a label map of the regions.
+     * See {@link AtlasLabelMap#assignRegions(Collection)} for the measurements written on the objects.
+     * @param imageData the data of the image, in which the atlas regions have been imported
+     * @param ontologyName the name of the atlas ontology
+     * @param objects the objects to assign, usually the detections
+     * @param downsample the downsample of the label map, see {@link AtlasLabelMap#build(PathObject, int, int, double)}
+     * @return the label map, which can be reused for other objects, or null if no atlas was imported
+     */
+    public static AtlasLabelMap assignAtlasRegions(ImageData<BufferedImage> imageData, String ontologyName, Collection<PathObject> objects, double downsample) {
+        PathObject atlasRoot = getAtlasRoot(imageData, ontologyName);
+        if (atlasRoot == null)
+            return null;
+        ImageServerMetadata metadata = imageData.getServerMetadata();
+        AtlasLabelMap labelMap = AtlasLabelMap.build(atlasRoot, metadata.getWidth(), metadata.getHeight(), downsample);
+        labelMap.assignRegions(objects);
+        return labelMap;
+    }
+
     public static PathObject loadWarpedAtlasAnnotations(AtlasOntology ontology, ImageData<BufferedImage> imageData, boolean splitLeftRight, boolean overwrite) {
         PathObject rootAnnotation = loadWarpedAtlasAnnotations(ontology, imageData, ontology.getName(), splitLeftRight, overwrite);
         if (rootAnnotation == null) {
@@ -343,152 +762,516 @@ public class AtlasTools {
 
     public static List<PathObject> getFlattenedWarpedAtlasRegions(AtlasOntology ontology, ImageData<BufferedImage> imageData, String roisetName, boolean splitLeftRight) {
         Project<BufferedImage> project = QP.getProject();
+        return getFlattenedWarpedAtlasRegions(ontology, imageData, project.getEntry(imageData), roisetName, splitLeftRight);
+    }
 
-        // Loop through each ImageEntry
-        ProjectImageEntry<BufferedImage> entry = project.getEntry(imageData);
+    public static List<PathObject> getFlattenedWarpedAtlasRegions(AtlasOntology ontology, ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, String roisetName, boolean splitLeftRight) {
+        return getFlattenedWarpedAtlasRegions(ontology, imageData, entry, roisetName, new AtlasImportOptions().splitLeftRight(splitLeftRight), Map.of(), null);
+    }
 
+    /**
+     * Converts the regions of a RoiSet, reusing the previously imported regions whose fingerprint is unchanged,
+     * see {@link #METADATA_FINGERPRINT}. The reused regions are renamed in place, the others are converted and split,
+     * then simplified as set by the options, see {@link #completeRegions(List, AtlasOntology, Set, AtlasImportOptions, Set)}.
+     * @param options the split, geometry cache, parent regions and simplification options
+     * @param previousRegions the previously imported regions, by ontology id (the left and right parts of a split region)
+     * @param reused receives the reused regions, may be null if there is no previous region
+     * @return the flattened regions, or null if the RoiSet does not exist
+     * @throws UncheckedIOException if the RoiSet can't be decoded, so that no partial atlas is imported or cached
+     */
+    private static List<PathObject> getFlattenedWarpedAtlasRegions(AtlasOntology ontology, ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, String roisetName,
+                                                                   AtlasImportOptions options, Map<Integer, List<PathObject>> previousRegions, Set<PathObject> reused) {
+        boolean splitLeftRight = options.isSplitLeftRight();
+        boolean useCache = options.isGeometryCache();
         Path roisetPath = Paths.get(entry.getEntryPath().toString(), "ABBA-RoiSet-"+roisetName+".zip");
         if (!Files.exists(roisetPath)) {
             logger.info("No RoiSets found: {}", roisetPath);
             return null;
         }
 
-        // Get all the ROIs and add them as PathAnnotations
-        List<Roi> rois = RoiSetLoader.openRoiSet(roisetPath.toAbsolutePath().toFile());
-        logger.info("Loading {} Atlas Regions for {}", rois.size(), entry.getImageName());
+        // The rois will need to be transformed before being imported if the server is rotated
+        AffineTransform transform = AtlasGeometryContext.of(imageData).getTransform();
 
-        Roi right = null;
-        Roi left = null;
+        AffineTransform finalTransform = transform;
+        File roisetFile = roisetPath.toAbsolutePath().toFile();
 
-        for (Roi roi:rois) {
-            if (roi.getName().equals("Left")) {
-                left = roi;
-            }
-            if (roi.getName().equals("Right")) {
-                right = roi;
+        // Parent regions present in the RoiSet, which are not decoded if they are derived from the leaf regions
+        Set<Integer> parentIds = options.getParentRegions() == AtlasImportOptions.ParentRegions.DECODED ? Set.of() : getParentRegionIds(roisetFile, ontology);
+
+        // Simplified regions keep their full resolution geometry in the cache, which is only read back if it is used
+        boolean writeCache = useCache || (options.getSimplifyTolerance() > 0);
+        Path cachePath = null;
+        String cacheKey = null;
+        if (writeCache) {
+            cachePath = AtlasGeometryCache.getPath(entry, roisetName);
+            cacheKey = AtlasGeometryCache.computeKey(roisetFile, finalTransform, splitLeftRight, ontology.getName(), !parentIds.isEmpty());
+        }
+        if (useCache) {
+            List<AtlasGeometryCache.CachedRegion> cachedRegions = AtlasGeometryCache.read(cachePath, cacheKey);
+            if (cachedRegions != null)
+                return completeRegions(getCachedWarpedAtlasRegions(cachedRegions, ontology, options.getSimplifyTolerance(), previousRegions, reused),
+                        ontology, parentIds, options, reused);
+        }
+
+        String[] fingerprints = getRegionFingerprints(roisetFile, finalTransform, splitLeftRight, options.getSimplifyTolerance());
+
+        // Get all the ROIs and add them as PathAnnotations: each ROI is converted as soon as it is decoded,
+        // so that the raw ImageJ ROIs do not stay in memory during the import
+        Map<Integer, PathObject> regions = new ConcurrentSkipListMap<>();
+        Map<Integer, List<PathObject>> reusedRegions = new ConcurrentSkipListMap<>();
+        Map<String, Roi> hemispheres = new ConcurrentHashMap<>();
+        int nDecoded;
+        try {
+            nDecoded = RoiSetLoader.forEachRoi(roisetFile, true, name -> !isRegionIn(name, parentIds), (roi, index) -> {
+                if (roi.getName().equals("Left") || roi.getName().equals("Right")) {
+                    hemispheres.put(roi.getName(), roi);
+                    return;
+                }
+                String fingerprint = fingerprints == null ? null : fingerprints[index];
+                List<PathObject> previous = previousRegions.get(Integer.parseInt(roi.getName()));
+                if ((fingerprint != null) && (previous != null)
+                        && previous.stream().allMatch(p -> fingerprint.equals(p.getMetadata().get(METADATA_FINGERPRINT)))) {
+                    reusedRegions.put(index, previous);
+                } else {
+                    PathObject region = createRegionObject(roi, ontology, finalTransform);
+                    if (fingerprint != null)
+                        region.getMetadata().put(METADATA_FINGERPRINT, fingerprint);
+                    regions.put(index, region);
+                }
+            });
+        } catch (IOException e) {
+            // Abort rather than import, or cache, part of the atlas
+            throw new UncheckedIOException(e);
+        }
+        List<PathObject> annotations = new ArrayList<>(regions.values());
+        logger.info("Loaded {} Atlas Regions for {}", annotations.size() + reusedRegions.size(), entry.getImageName());
+
+        if (splitLeftRight) {
+            ROI leftROI = convertHemisphere(hemispheres.get("Left"), finalTransform);
+            ROI rightROI = convertHemisphere(hemispheres.get("Right"), finalTransform);
+            annotations = splitLeftRight(annotations, leftROI, rightROI);
+        }
+        if (!reusedRegions.isEmpty()) {
+            for (List<PathObject> previous : reusedRegions.values()) {
+                for (PathObject region : previous) {
+                    updateRegionObject(region, ontology);
+                    annotations.add(region);
+                    reused.add(region);
+                }
             }
+            logger.info("{} unchanged regions reused, {} regions converted", reusedRegions.size(), regions.size());
+        }
+        // Only the regions converted now are at full resolution: the reused ones may have been simplified.
+        // The cache key is computed from the whole archive, so it is only written if every entry has been decoded
+        if (writeCache && reusedRegions.isEmpty() && (nDecoded == countDecodedEntries(roisetFile, parentIds)))
+            AtlasGeometryCache.write(cachePath, cacheKey, annotations);
+        return completeRegions(annotations, ontology, parentIds, options, reused);
+    }
+
+    /**
+     * Simplifies the converted regions and derives the parent regions, as set by the import options.<br>
+     * The leaf regions form a tessellation, which is simplified as a single coverage, see {@link AtlasRegionSimplifier}.
+     * Derived parent regions are then built as the unions of their simplified children, so that they cover them exactly.
+     * Decoded parent regions may hold pixels which the atlas only labels at their level: they are not rebuilt from their children,
+     * but simplified as one coverage per depth in the ontology.
+     * Simplification needs all the leaf regions at full resolution: it is skipped when regions are reused,
+     * since they have already been simplified with the same tolerance, see {@link #getRegionFingerprints(File, AffineTransform, boolean, double)}.
+     * @param regions the converted and reused regions
+     * @param parentIds the ids of the parent regions which have not been decoded
+     * @param reused the reused regions, may be null
+     * @return the regions, with the derived parent regions
+     */
+    private static List<PathObject> completeRegions(List<PathObject> regions, AtlasOntology ontology, Set<Integer> parentIds, AtlasImportOptions options, Set<PathObject> reused) {
+        AtlasImportOptions.ParentRegions parentRegions = options.getParentRegions();
+        boolean union = parentRegions != AtlasImportOptions.ParentRegions.EMPTY;
+        if (!(options.getSimplifyTolerance() > 0) || ((reused != null) && !reused.isEmpty()))
+            return parentRegions == AtlasImportOptions.ParentRegions.DECODED ? regions : addParentRegions(regions, ontology, parentIds, union);
+        if (parentRegions != AtlasImportOptions.ParentRegions.DECODED) {
+            AtlasRegionSimplifier.simplify(regions, options.getSimplifyTolerance());
+            return addParentRegions(regions, ontology, parentIds, union);
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (PathObject region : regions)
+            ids.add((int) region.getMeasurementList().get("ID"));
+        Set<Integer> decodedParentIds = getParentRegionIds(ids, ontology);
+        List<PathObject> leaves = new ArrayList<>();
+        Map<Integer, List<PathObject>> parentsByDepth = new TreeMap<>();
+        for (PathObject region : regions) {
+            int id = (int) region.getMeasurementList().get("ID");
+            if (decodedParentIds.contains(id))
+                parentsByDepth.computeIfAbsent(getDepth(id, ontology), d -> new ArrayList<>()).add(region);
+            else
+                leaves.add(region);
         }
+        List<List<PathObject>> coverages = new ArrayList<>();
+        coverages.add(leaves);
+        coverages.addAll(parentsByDepth.values());
+        AtlasRegionSimplifier.simplifyCoverages(coverages, options.getSimplifyTolerance());
+        return regions;
+    }
 
-        rois.remove(left);
-        rois.remove(right);
+    private static int getDepth(int id, AtlasOntology ontology) {
+        int depth = 0;
+        for (int parentId = ontology.parentId(id); parentId != AtlasNodeIndex.NONE; parentId = ontology.parentId(parentId))
+            depth++;
+        return depth;
+    }
 
+    /**
+     * @return the ids of the regions of the RoiSet which have descendants in the RoiSet, found from the names of its entries
+     */
+    private static Set<Integer> getParentRegionIds(File roisetFile, AtlasOntology ontology) {
+        Set<Integer> ids = new HashSet<>();
+        try {
+            for (ZipEntry entry : RoiSetLoader.listRoiEntries(roisetFile)) {
+                String name = RoiSetLoader.getRoiName(entry);
+                if (!name.equals("Left") && !name.equals("Right"))
+                    ids.add(Integer.parseInt(name));
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Could not list the regions of {}, parent regions will be decoded", roisetFile, e);
+            return Set.of();
+        }
+        return getParentRegionIds(ids, ontology);
+    }
 
-        AffineTransform transform = null;
-        for (ImageServerBuilder.ServerBuilder<?> serverBuilder: getLazyNestedBuilders(imageData)) {
-            // The roi will need to be transformed before being imported
-            Optional<RotatedImageServer.Rotation> rotation;
-            if ((rotation = getLazyRotation(serverBuilder)).isEmpty())
-                // the server is not rotated
-                continue;
-            ImageServerMetadata metadata = imageData.getServerMetadata();
-            switch (rotation.get()) {
-                case ROTATE_NONE: // No rotation.
-                    break;
-                case ROTATE_90: // Rotate 90 degrees clockwise.
-                    transform = AffineTransform.getRotateInstance(Math.PI/2.0);
-                    transform.translate(0, -metadata.getWidth());
-                    break;
-                case ROTATE_180: // Rotate 180 degrees.
-                    transform = AffineTransform.getRotateInstance(Math.PI);
-                    transform.translate(-metadata.getWidth(), -metadata.getHeight());
-                    break;
-                case ROTATE_270: // Rotate 270 degrees
-                    transform = AffineTransform.getRotateInstance(Math.PI*3.0/2.0);
-                    transform.translate(-metadata.getHeight(), 0);
-                    break;
-                default:
-                    System.err.println("Unknown rotation for rotated image server: " + rotation.get());
+    /**
+     * @param ids the ids of a set of regions
+     * @return the ids of the regions of the set which have descendants in the set
+     */
+    private static Set<Integer> getParentRegionIds(Set<Integer> ids, AtlasOntology ontology) {
+        Set<Integer> parentIds = new HashSet<>();
+        for (int id : ids) {
+            for (int parentId = ontology.parentId(id); parentId != AtlasNodeIndex.NONE; parentId = ontology.parentId(parentId)) {
+                if (ids.contains(parentId) && !parentIds.add(parentId))
+                    break; // Its ancestors have already been added
             }
         }
+        return parentIds;
+    }
 
-        AffineTransform finalTransform = transform;
+    /**
+     * @return the number of '.roi' entries of a RoiSet which are decoded when the given parent regions are derived,
+     * or -1 if the archive can't be listed
+     */
+    private static int countDecodedEntries(File roisetFile, Set<Integer> parentIds) {
+        try {
+            return (int) RoiSetLoader.listRoiEntries(roisetFile).stream()
+                    .filter(entry -> !isRegionIn(RoiSetLoader.getRoiName(entry), parentIds))
+                    .count();
+        } catch (IOException e) {
+            logger.warn("Could not list the regions of {}", roisetFile, e);
+            return -1;
+        }
+    }
+
+    private static boolean isRegionIn(String roiName, Set<Integer> ids) {
+        if (ids.isEmpty() || roiName.equals("Left") || roiName.equals("Right"))
+            return false;
+        try {
+            return ids.contains(Integer.parseInt(roiName));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 
-        List<PathObject> annotations = rois.stream().map(roi -> {
-            // Create PathObject
+    /**
+     * Derives the parent regions from the leaf regions, see {@link AtlasImportOptions.ParentRegions}.
+     * Parent regions are built from the deepest to the root of the ontology, so that the geometry of a parent region
+     * is the union of the geometries of its children, the parent regions of a same depth being built in parallel.
+     * Each side of a split region has its own parent regions.
+     * When the children have an area at full resolution, see {@link AtlasRegionSimplifier#MEASUREMENT_FULL_RESOLUTION_AREA},
+     * the area of a derived parent region is the sum of theirs. Parent regions with an empty geometry always get the sum
+     * of the areas of their children, so that their statistics don't drop to 0.
+     * @param regions the leaf regions
+     * @param parentIds the ids of the parent regions
+     * @param union whether the geometry of a parent region is the union of its children, or empty
+     * @return the leaf and parent regions
+     */
+    private static List<PathObject> addParentRegions(List<PathObject> regions, AtlasOntology ontology, Set<Integer> parentIds, boolean union) {
+        if (parentIds.isEmpty())
+            return regions;
+        long start = System.nanoTime();
+        // Geometries and areas of the children of each parent region and side, keyed by id * 3 + side
+        Map<Long, List<Geometry>> childGeometries = new HashMap<>();
+        Map<Long, Double> childAreas = new HashMap<>();
+        Set<Integer> sides = new TreeSet<>();
+        for (PathObject region : regions) {
+            int id = (int) region.getMeasurementList().get("ID");
+            int side = AtlasLabelMap.getSide(region.getPathClass());
+            sides.add(side);
+            addToParent(region, id, side, ontology, parentIds, union, childGeometries, childAreas);
+        }
 
-            PathObject object = PathObjects.createAnnotationObject(IJTools.convertToROI(roi, 0, 0, 1, null));
+        Map<Integer, List<Integer>> parentIdsByDepth = new TreeMap<>(Comparator.reverseOrder());
+        for (int id : parentIds)
+            parentIdsByDepth.computeIfAbsent(getDepth(id, ontology), d -> new ArrayList<>()).add(id);
 
-            // Handles rotated image server
-            if (finalTransform !=null) {
-                object = PathObjectTools.transformObject(object, finalTransform, true);
+        List<PathObject> allRegions = new ArrayList<>(regions);
+        for (List<Integer> level : parentIdsByDepth.values()) {
+            List<PathObject> parents = level.parallelStream()
+                    .flatMap(id -> sides.stream().map(side -> {
+                        long key = id * 3L + side;
+                        return deriveParentRegion(id, side, childGeometries.get(key), childAreas.getOrDefault(key, Double.NaN), ontology, union);
+                    }))
+                    .filter(Objects::nonNull)
+                    .toList();
+            for (PathObject parent : parents) {
+                int id = (int) parent.getMeasurementList().get("ID");
+                int side = AtlasLabelMap.getSide(parent.getPathClass());
+                addToParent(parent, id, side, ontology, parentIds, union, childGeometries, childAreas);
+                allRegions.add(parent);
             }
+        }
+        logger.info("{} parent regions derived from {} regions in {} ms", allRegions.size() - regions.size(), regions.size(), (System.nanoTime() - start) / 1e6);
+        return allRegions;
+    }
+
+    private static void addToParent(PathObject region, int id, int side, AtlasOntology ontology, Set<Integer> parentIds, boolean union,
+                                    Map<Long, List<Geometry>> childGeometries, Map<Long, Double> childAreas) {
+        int parentId = getPresentParentId(id, ontology, parentIds);
+        if (parentId == AtlasNodeIndex.NONE)
+            return;
+        long key = parentId * 3L + side;
+        childGeometries.computeIfAbsent(key, k -> new ArrayList<>()).add(union ? region.getROI().getGeometry() : null);
+        // NaN as soon as a child has no area at full resolution, except for empty parent regions which keep the area of their leaves
+        double area = region.getMeasurementList().get(AtlasRegionSimplifier.MEASUREMENT_FULL_RESOLUTION_AREA);
+        if (Double.isNaN(area) && !union)
+            area = region.getROI().getArea();
+        childAreas.merge(key, area, Double::sum);
+    }
+
+    /**
+     * @return the id of the closest ancestor of a region which is a parent region, or {@link AtlasNodeIndex#NONE}
+     */
+    private static int getPresentParentId(int id, AtlasOntology ontology, Set<Integer> parentIds) {
+        int parentId = ontology.parentId(id);
+        while (parentId != AtlasNodeIndex.NONE && !parentIds.contains(parentId))
+            parentId = ontology.parentId(parentId);
+        return parentId;
+    }
 
-            // Add metadata to object as acquired from the Ontology
-            int object_id = Integer.parseInt(roi.getName());
-            // Get associated information
-            AtlasNode node = ontology.getNodeFromId(object_id);
-            String name = node.data().get(ontology.getNamingProperty());
-            if ((name == null) && (ontology.getNamingProperty().equals("ID"))) {
-                name = Integer.toString(object_id);
+    /**
+     * @param childArea the sum of the areas at full resolution of the children, NaN if unknown
+     * @return the parent region of a side, or null if it has no child on that side
+     */
+    private static PathObject deriveParentRegion(int id, int side, List<Geometry> childGeometries, double childArea, AtlasOntology ontology, boolean union) {
+        if (childGeometries == null)
+            return null;
+        ROI roi = union ? GeometryTools.geometryToROI(GeometryTools.union(childGeometries), ImagePlane.getDefaultPlane()) : ROIs.createEmptyROI();
+        PathObject region = createRegionObject(roi, id, ontology);
+        if (side != AtlasLabelMap.SIDE_NONE)
+            updateRegionObject(region, ontology, side);
+        if (!Double.isNaN(childArea))
+            region.getMeasurementList().put(AtlasRegionSimplifier.MEASUREMENT_FULL_RESOLUTION_AREA, childArea);
+        return region;
+    }
+
+    /**
+     * Builds the flattened regions from the geometry cache, reusing the previous regions whose fingerprint is unchanged
+     * as {@link #getFlattenedWarpedAtlasRegions(AtlasOntology, ImageData, ProjectImageEntry, String, AtlasImportOptions, Map, Set)} does.
+     * The cached geometries are already rotated and split, at full resolution: only names, classes and colors are set from the ontology.
+     * @param tolerance the simplification tolerance of the import, part of the fingerprints
+     */
+    private static List<PathObject> getCachedWarpedAtlasRegions(List<AtlasGeometryCache.CachedRegion> cachedRegions, AtlasOntology ontology, double tolerance,
+                                                                Map<Integer, List<PathObject>> previousRegions, Set<PathObject> reused) {
+        Map<Integer, List<AtlasGeometryCache.CachedRegion>> cachedById = new HashMap<>();
+        for (AtlasGeometryCache.CachedRegion cached : cachedRegions)
+            cachedById.computeIfAbsent(cached.id, id -> new ArrayList<>()).add(cached);
+        List<PathObject> annotations = new ArrayList<>(cachedRegions.size());
+        int nReused = 0;
+        for (Map.Entry<Integer, List<AtlasGeometryCache.CachedRegion>> entry : cachedById.entrySet()) {
+            List<PathObject> previous = previousRegions.get(entry.getKey());
+            String fingerprint = getFingerprint(getGeometryFingerprint(entry.getValue().get(0).fingerprint), tolerance);
+            if ((previous != null) && previous.stream().allMatch(p -> fingerprint.equals(p.getMetadata().get(METADATA_FINGERPRINT)))) {
+                for (PathObject region : previous) {
+                    updateRegionObject(region, ontology);
+                    annotations.add(region);
+                    reused.add(region);
+                }
+                nReused++;
+                continue;
             }
-            object.setName(name);
-            object.getMeasurementList().put("ID", node.getId());
-            if (node.parent()!=null) {
-                //System.out.println("Parent ID = "+node.parent().getId());
-                object.getMeasurementList().put("Parent ID", node.parent().getId());
-            } else {
-                //System.out.println("Node without parent; id = "+node.getId());
+            for (AtlasGeometryCache.CachedRegion cached : entry.getValue()) {
+                PathObject region = createRegionObject(cached.roi, cached.id, ontology);
+                if (cached.side != AtlasLabelMap.SIDE_NONE)
+                    updateRegionObject(region, ontology, cached.side);
+                region.getMetadata().put(METADATA_FINGERPRINT, fingerprint);
+                annotations.add(region);
             }
-            object.getMeasurementList().put("Side", 0);
-            object.setPathClass(QP.getPathClass(name));
-            object.setLocked(true);
-            int[] rgba = node.getColor();
-            int color = ColorTools.packRGB(rgba[0], rgba[1], rgba[2]);
-            object.setColor(color);
-            return object;
-        }).collect(Collectors.toList());
+        }
+        if (nReused > 0)
+            logger.info("{} unchanged regions reused, {} regions read from the geometry cache", nReused, cachedById.size() - nReused);
+        return annotations;
+    }
 
+    /**
+     * Fingerprints the geometry of each region of a RoiSet, from the size and CRC of its zip entry,
+     * the rotation of the image server and, when regions are split, the entries of the hemispheres.
+     * The simplification tolerance is part of the fingerprint, see {@link #getFingerprint(String, double)}.
+     * Two imports of a region with the same fingerprint produce the same geometry.
+     * @return the fingerprint of each '.roi' entry, by index, or null if the archive can't be listed
+     */
+    private static String[] getRegionFingerprints(File roisetFile, AffineTransform transform, boolean splitLeftRight, double tolerance) {
+        List<ZipEntry> entries;
+        try {
+            entries = RoiSetLoader.listRoiEntries(roisetFile);
+        } catch (IOException e) {
+            logger.warn("Could not list the entries of {}", roisetFile, e);
+            return null;
+        }
+        double[] matrix = new double[6];
+        (transform == null ? new AffineTransform() : transform).getMatrix(matrix);
+        long base = splitLeftRight ? 1 : 0;
+        for (double value : matrix)
+            base = 31 * base + Double.hashCode(value);
         if (splitLeftRight) {
-            ROI leftROI = null;
-            ROI rightROI = null;
-            if (left!=null) {
-                leftROI = IJTools.convertToROI(left, 0, 0, 1, null);
-                // Handles rotated image server
-                if (finalTransform !=null) {
-                    PathObject leftObject = PathObjects.createAnnotationObject(leftROI);
-                    leftROI = PathObjectTools.transformObject(leftObject, finalTransform, true).getROI();
-                }
+            for (ZipEntry entry : entries) {
+                if (entry.getName().equals("Left.roi") || entry.getName().equals("Right.roi"))
+                    base = 31 * (31 * base + entry.getCrc()) + entry.getSize();
             }
-            if (right!=null) {
-                rightROI = IJTools.convertToROI(right, 0, 0, 1, null);
-                // Handles rotated image server
-                if (finalTransform !=null) {
-                    PathObject rightObject = PathObjects.createAnnotationObject(rightROI);
-                    rightROI = PathObjectTools.transformObject(rightObject, finalTransform, true).getROI();
-                }
-            }
-            List<PathObject> splitObjects = new ArrayList<>();
-            for (PathObject annotation : annotations) {
-
-                if (leftROI!=null) {
-                    ROI shapeLeft = RoiTools.combineROIs(leftROI, annotation.getROI(), RoiTools.CombineOp.INTERSECT);
-                    if (!shapeLeft.isEmpty()) {
-                        PathObject objectLeft = PathObjects.createAnnotationObject(shapeLeft, annotation.getPathClass(), duplicateMeasurements(annotation.getMeasurementList()));
-                        objectLeft.setName(annotation.getName());
-                        objectLeft.setPathClass(QP.getDerivedPathClass(QP.getPathClass("Left"), annotation.getPathClass().getName()));
-                        objectLeft.setColor(annotation.getColor());
-                        objectLeft.setLocked(true);
-                        splitObjects.add(objectLeft);
-                    }
-                }
+        }
+        String[] fingerprints = new String[entries.size()];
+        for (int i = 0; i < fingerprints.length; i++) {
+            long fingerprint = (31 * base + entries.get(i).getCrc()) * 0x9E3779B97F4A7C15L + entries.get(i).getSize();
+            fingerprints[i] = getFingerprint(Long.toHexString(fingerprint), tolerance);
+        }
+        return fingerprints;
+    }
 
-                if (rightROI!=null) {
-                    ROI shapeRight = RoiTools.combineROIs(rightROI, annotation.getROI(), RoiTools.CombineOp.INTERSECT);
-                    if (!shapeRight.isEmpty()) {
-                        PathObject objectRight = PathObjects.createAnnotationObject(shapeRight, annotation.getPathClass(), duplicateMeasurements(annotation.getMeasurementList()));
-                        objectRight.setName(annotation.getName());
-                        objectRight.setPathClass(QP.getDerivedPathClass(QP.getPathClass("Right"), annotation.getPathClass().getName()));
-                        objectRight.setColor(annotation.getColor());
-                        objectRight.setLocked(true);
-                        splitObjects.add(objectRight);
-                    }
-                }
+    /**
+     * @param geometryFingerprint the fingerprint of the geometry of a region at full resolution
+     * @param tolerance the simplification tolerance
+     * @return the fingerprint of the region, 'geometry fingerprint@tolerance' for simplified regions
+     */
+    private static String getFingerprint(String geometryFingerprint, double tolerance) {
+        return tolerance > 0 ? geometryFingerprint + "@" + tolerance : geometryFingerprint;
+    }
+
+    /**
+     * @return the fingerprint of the geometry at full resolution, without the simplification tolerance
+     */
+    private static String getGeometryFingerprint(String fingerprint) {
+        int i = fingerprint.indexOf('@');
+        return i < 0 ? fingerprint : fingerprint.substring(0, i);
+    }
+
+    private static PathObject createRegionObject(Roi roi, AtlasOntology ontology, AffineTransform transform) {
+        // Handles rotated image server
+        return createRegionObject(convertRoi(roi, transform), Integer.parseInt(roi.getName()), ontology);
+    }
+
+    /**
+     * Creates the locked annotation of an atlas region, unsplit, from its converted ROI
+     * @param roi the ROI of the region, in the coordinates of the (possibly rotated) image
+     * @param object_id the ontology id of the region
+     * @param ontology the atlas ontology
+     * @return the region annotation, with its 'ID', 'Parent ID' and 'Side' measurements
+     */
+    private static PathObject createRegionObject(ROI roi, int object_id, AtlasOntology ontology) {
+        // Create PathObject
+        PathObject object = PathObjects.createAnnotationObject(roi);
+
+        // Add metadata to object as acquired from the Ontology
+        // Get associated information
+        AtlasNode node = ontology.getNodeFromId(object_id);
+        String name = getRegionName(node, ontology);
+        object.setName(name);
+        object.getMeasurementList().put("ID", node.getId());
+        if (node.parent()!=null) {
+            object.getMeasurementList().put("Parent ID", node.parent().getId());
+        }
+        object.getMeasurementList().put("Side", 0);
+        object.setPathClass(QP.getPathClass(name));
+        object.setLocked(true);
+        int[] rgba = node.getColor();
+        int color = ColorTools.packRGB(rgba[0], rgba[1], rgba[2]);
+        object.setColor(color);
+        return object;
+    }
+
+    private static String getRegionName(AtlasNode node, AtlasOntology ontology) {
+        String name = node.data().get(ontology.getNamingProperty());
+        if ((name == null) && (ontology.getNamingProperty().equals("ID"))) {
+            name = Integer.toString(node.getId());
+        }
+        return name;
+    }
+
+    /**
+     * Updates in place the name, class and color of a reused region, which may have been imported with another naming property
+     */
+    private static void updateRegionObject(PathObject object, AtlasOntology ontology) {
+        updateRegionObject(object, ontology, AtlasLabelMap.getSide(object.getPathClass()));
+    }
 
+    /**
+     * Sets the name, class and color of a region from the ontology
+     * @param side the side of the region, see {@link AtlasLabelMap#SIDE_NONE}
+     */
+    private static void updateRegionObject(PathObject object, AtlasOntology ontology, int side) {
+        AtlasNode node = ontology.getNodeFromId((int) object.getMeasurementList().get("ID"));
+        String name = getRegionName(node, ontology);
+        object.setName(name);
+        switch (side) {
+            case AtlasLabelMap.SIDE_LEFT -> object.setPathClass(QP.getDerivedPathClass(QP.getPathClass("Left"), name));
+            case AtlasLabelMap.SIDE_RIGHT -> object.setPathClass(QP.getDerivedPathClass(QP.getPathClass("Right"), name));
+            default -> object.setPathClass(QP.getPathClass(name));
+        }
+        int[] rgba = node.getColor();
+        object.setColor(ColorTools.packRGB(rgba[0], rgba[1], rgba[2]));
+    }
+
+    /**
+     * Converts a hemisphere ROI of the RoiSet to a QuPath ROI, in the coordinates of the (possibly rotated) image.
+     * @param hemisphere the ImageJ ROI of the hemisphere, or null
+     * @param transform the transform from the unrotated image, or null
+     * @return the converted ROI, or null if hemisphere is null
+     */
+    static ROI convertHemisphere(Roi hemisphere, AffineTransform transform) {
+        if (hemisphere == null)
+            return null;
+        return convertRoi(hemisphere, transform);
+    }
+
+    /**
+     * Converts an ImageJ ROI of the RoiSet to a QuPath ROI, applying the rotation of the image server on the way.<br>
+     * The vertices of polygons are transformed once, in primitive arrays, and the final ROI is built directly from them:
+     * neither an intermediate ROI nor an annotation object is created. Other ROIs (e.g. the composite ROIs of regions
+     * made of several parts) are converted by ImageJ, then their geometry is transformed.
+     * @param roi the ImageJ ROI, in the coordinates of the unrotated image
+     * @param transform the transform from the unrotated image, or null
+     * @return the converted ROI
+     */
+    static ROI convertRoi(Roi roi, AffineTransform transform) {
+        int type = roi.getType();
+        if (type == Roi.POLYGON || type == Roi.FREEROI || type == Roi.TRACED_ROI) {
+            FloatPolygon polygon = roi.getFloatPolygon();
+            int n = polygon.npoints;
+            double[] x = new double[n];
+            double[] y = new double[n];
+            if (transform == null) {
+                for (int i = 0; i < n; i++) {
+                    x[i] = polygon.xpoints[i];
+                    y[i] = polygon.ypoints[i];
+                }
+            } else {
+                double m00 = transform.getScaleX(), m01 = transform.getShearX(), m02 = transform.getTranslateX();
+                double m10 = transform.getShearY(), m11 = transform.getScaleY(), m12 = transform.getTranslateY();
+                for (int i = 0; i < n; i++) {
+                    double px = polygon.xpoints[i];
+                    double py = polygon.ypoints[i];
+                    x[i] = m00 * px + m01 * py + m02;
+                    y[i] = m10 * px + m11 * py + m12;
+                }
             }
-            return splitObjects;
-        } else {
-            return annotations;
+            return ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane());
         }
+        ROI converted = IJTools.convertToROI(roi, 0, 0, 1, null);
+        if (transform == null || transform.isIdentity())
+            return converted;
+        Geometry geometry = GeometryTools.convertTransform(transform).transform(converted.getGeometry());
+        return GeometryTools.geometryToROI(geometry, converted.getImagePlane());
     }
 
     /**
@@ -0,0 +1,110 @@
+package qupath.ext.biop.abba;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransformSequence;
+import net.imglib2.realtransform.RealTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.warpy.Warpy;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of the ABBA transformations read by Warpy.<br>
+ * A transformation file is parsed again only when its modification time or its size changes.
+ * The composition with the transform of a rotated image server is cached as well.
+ * Transforms are not thread-safe, so each call returns a copy of the cached transform, which is
+ * cheap compared to parsing the json file and setting up the splines.
+ * Cached transforms are softly referenced, so they are released if the heap runs low.
+ */
+public class AtlasTransformCache {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasTransformCache.class);
+
+    private static final Map<String, SoftReference<CachedTransform>> cache = new ConcurrentHashMap<>();
+
+    private static class CachedTransform {
+        final long lastModified;
+        final long size;
+        final RealTransform transform;
+        // Last composition with a server transform, and the matrix of that server transform
+        volatile ComposedTransform composed;
+
+        CachedTransform(long lastModified, long size, RealTransform transform) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.transform = transform;
+        }
+    }
+
+    private static class ComposedTransform {
+        final double[] serverMatrix;
+        final RealTransform transform;
+
+        ComposedTransform(double[] serverMatrix, RealTransform transform) {
+            this.serverMatrix = serverMatrix;
+            this.transform = transform;
+        }
+    }
+
+    private static CachedTransform getCachedTransform(File transformFile) {
+        File file = transformFile.getAbsoluteFile();
+        String key = file.getPath();
+        long lastModified = file.lastModified();
+        long size = file.length();
+        SoftReference<CachedTransform> reference = cache.get(key);
+        CachedTransform cached = reference == null ? null : reference.get();
+        if ((cached == null) || (cached.lastModified != lastModified) || (cached.size != size)) {
+            logger.debug("Reading transform {}", file);
+            RealTransform transform = Warpy.getRealTransform(file);
+            if (transform == null)
+                return null;
+            cached = new CachedTransform(lastModified, size, transform);
+            cache.put(key, new SoftReference<>(cached));
+        }
+        return cached;
+    }
+
+    /**
+     * @param transformFile an ABBA-Transform json file
+     * @return a copy of the transformation read by Warpy from this file, or null if it could not be read
+     */
+    public static RealTransform getRealTransform(File transformFile) {
+        CachedTransform cached = getCachedTransform(transformFile);
+        return cached == null ? null : cached.transform.copy();
+    }
+
+    /**
+     * @param transformFile an ABBA-Transform json file
+     * @param serverTransform the transform from the unrotated image to the (possibly rotated) image server
+     * @return a copy of the sequence of the ABBA transformation followed by the server transform,
+     * or null if the file could not be read
+     */
+    public static RealTransform getAtlasToPixelTransform(File transformFile, AffineTransform3D serverTransform) {
+        CachedTransform cached = getCachedTransform(transformFile);
+        if (cached == null)
+            return null;
+        double[] serverMatrix = serverTransform.getRowPackedCopy();
+        ComposedTransform composed = cached.composed;
+        if ((composed == null) || !Arrays.equals(composed.serverMatrix, serverMatrix)) {
+            InvertibleRealTransformSequence irts = new InvertibleRealTransformSequence();
+            irts.add((InvertibleRealTransform) cached.transform.copy());
+            irts.add(serverTransform.copy());
+            composed = new ComposedTransform(serverMatrix, irts);
+            cached.composed = composed;
+        }
+        return composed.transform.copy();
+    }
+
+    /**
+     * Empties the cache, for instance to release memory after a batch
+     */
+    public static void clear() {
+        cache.clear();
+    }
+}
@@ -0,0 +1,117 @@
+package qupath.ext.biop.abba;
+
+import javafx.application.Platform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.abba.struct.AtlasOntology;
+import qupath.fx.dialogs.Dialogs;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class LoadAtlasRoisToProjectCommand implements Runnable {
+
+    final static Logger logger = LoggerFactory.getLogger(LoadAtlasRoisToProjectCommand.class);
+
+    private final QuPathGUI qupath;
+
+    public LoadAtlasRoisToProjectCommand(final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    public void run() {
+        Project<BufferedImage> project = qupath.getProject();
+        if (project == null) {
+            Dialogs.showErrorMessage("No project opened.", "Please open the QuPath project used with ABBA first.");
+            return;
+        }
+
+        String splitMode =
+                Dialogs.showChoiceDialog("Load Brain RoiSets into Project",
+                        "This will load the RoiSets exported using the ABBA tool onto all registered images of the project.\n" +
+                                "Images opened in a viewer are skipped.\nContinue?", new String[]{"Split Left and Right Regions", "Do not split"}, "Do not split");
+        if (splitMode == null)
+            return; // cancelled
+        boolean splitLeftRight = splitMode.equals("Split Left and Right Regions");
+
+        List<String> ontologyFiles = AtlasTools.getAvailableAtlasOntologyFiles();
+        if (ontologyFiles == null || ontologyFiles.isEmpty()) {
+            Dialogs.showErrorMessage("No atlas ontology found.", "You first need to export your registration from Fiji's ABBA plugin.");
+            logger.error("No atlas ontology found.");
+            return;
+        }
+
+        // Get atlas ontology
+        String ontologySuffix = "-Ontology.json";
+        List<String> ontologyNames = ontologyFiles.stream()
+                .map(of -> of.substring(0, of.length() - ontologySuffix.length()))
+                .toList();
+        String ontologyName;
+        if (ontologyNames.size() > 1) {
+            ontologyName =
+                    Dialogs.showChoiceDialog("Atlas ontologies",
+                            "Please select the preferred atlas ontology used for registration.",
+                            ontologyNames,
+                            null);
+            if (ontologyName == null)
+                return;
+        } else {
+            ontologyName = ontologyNames.get(0);
+        }
+
+        AtlasOntology projectOntology = AtlasProjectTools.getAtlasOntology(project, ontologyName);
+        if (projectOntology == null) {
+            Dialogs.showErrorMessage("Atlas ontology not readable.", "Could not read the atlas ontology "+ontologyName+".");
+            return;
+        }
+
+        // Get naming possibilities
+        String namingProperty =
+                Dialogs.showChoiceDialog("Regions names",
+                        "Please select the property for naming the imported regions.",
+                        AtlasTools.getNamingProperties(projectOntology).toArray(new String[0]),
+                        "ID");
+        if (namingProperty == null)
+            return;
+        AtlasOntology ontology = projectOntology.withNamingProperty(namingProperty);
+
+        // Images opened in a viewer would be overwritten when saved by the user: leave them aside
+        Set<ProjectImageEntry<BufferedImage>> openedEntries = qupath.getAllViewers()
+                .stream()
+                .map(QuPathViewer::getImageData)
+                .filter(Objects::nonNull)
+                .map(project::getEntry)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        List<ProjectImageEntry<BufferedImage>> entries = AtlasProjectTools.getRegisteredEntries(project, ontologyName)
+                .stream()
+                .filter(entry -> !openedEntries.contains(entry))
+                .toList();
+        if (entries.isEmpty()) {
+            Dialogs.showErrorMessage("No atlas registration found.",
+                    "No image of the project has a registration for the atlas "+ontologyName+" (opened images are skipped).");
+            return;
+        }
+
+        int nThreads = AtlasProjectTools.getMaxWorkers(AtlasProjectTools.DEFAULT_BYTES_PER_WORKER);
+        Thread worker = new Thread(() -> {
+            List<ProjectImageEntry<BufferedImage>> imported = AtlasProjectTools.loadWarpedAtlasAnnotations(project, entries, ontology, ontologyName,
+                    splitLeftRight, true, nThreads);
+            Platform.runLater(() -> {
+                qupath.refreshProject();
+                Dialogs.showInfoNotification("Load Brain RoiSets into Project",
+                        "Atlas "+ontologyName+" imported in "+imported.size()+"/"+entries.size()+" images.");
+            });
+        }, "abba-project-import");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+}
@@ -87,7 +87,7 @@ public class LoadAtlasRoisToQuPathCommand implements Runnable {
                             AtlasTools.getNamingProperties(ontology).toArray(new String[0]),
                             "ID");
 
-            ontology.setNamingProperty(namingProperty);
+            ontology = ontology.withNamingProperty(namingProperty);
 
             // Now we have all we need, the name whether to split left and right
             PathObject rootAnnotation = AtlasTools.loadWarpedAtlasAnnotations(ontology, imageData, ontologyName, splitLeftRight, true);
@@ -9,8 +9,19 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class RoiSetLoader {
@@ -66,4 +77,135 @@ public class RoiSetLoader {
         }
         return rois;
     }
+
+    /**
+     * Opens a RoiSet, optionally decoding its entries in parallel, see {@link #forEachRoi(File, boolean, ObjIntConsumer)}.
+     * The ROIs are returned in the order of the archive whatever the mode.
+     * @param path the RoiSet zip file
+     * @param parallel whether to decode the entries in parallel
+     * @return the decoded ROIs
+     * @throws IOException if the archive can't be read or an entry can't be decoded
+     */
+    public static ArrayList<Roi> openRoiSet( File path, boolean parallel ) throws IOException {
+        Map<Integer, Roi> rois = new ConcurrentSkipListMap<>();
+        forEachRoi(path, parallel, (roi, index) -> rois.put(index, roi));
+        return new ArrayList<>(rois.values());
+    }
+
+    /**
+     * Decodes the ROIs of a RoiSet and hands each of them to a consumer as soon as it is decoded,
+     * so that the ROIs of a large RoiSet never need to be held in memory together.<br>
+     * In parallel mode, the consumer is called concurrently from several threads and must be thread-safe.
+     * Whatever the mode, the consumer receives with each ROI the index of its entry among the '.roi' entries
+     * of the archive, which allows to restore the order of the RoiSet.
+     * @param path the RoiSet zip file
+     * @param parallel whether to decode the entries in parallel
+     * @param consumer the consumer of each decoded ROI and of its index
+     * @return the number of ROIs decoded
+     * @throws IOException if the archive can't be read or an entry can't be decoded; the consumer may then have received part of the ROIs
+     */
+    public static int forEachRoi( File path, boolean parallel, ObjIntConsumer<Roi> consumer ) throws IOException {
+        return forEachRoi(path, parallel, name -> true, consumer);
+    }
+
+    /**
+     * Same as {@link #forEachRoi(File, boolean, ObjIntConsumer)}, but only the entries accepted by a filter are inflated and decoded.
+     * The indices of the ROIs are still their indices among all the '.roi' entries of the archive.
+     * @param path the RoiSet zip file
+     * @param parallel whether to decode the entries in parallel
+     * @param filter tests the name of each entry, without its '.roi' extension
+     * @param consumer the consumer of each decoded ROI and of its index
+     * @return the number of ROIs decoded, which is the number of accepted entries
+     * @throws IOException if the archive can't be read or an accepted entry can't be decoded; the consumer may then have received part of the ROIs
+     */
+    public static int forEachRoi( File path, boolean parallel, Predicate<String> filter, ObjIntConsumer<Roi> consumer ) throws IOException {
+        AtomicInteger nRois = new AtomicInteger();
+        if (parallel) {
+            try (ZipFile zipFile = new ZipFile(path)) {
+                List<? extends ZipEntry> entries = zipFile.stream()
+                        .filter(entry -> entry.getName().endsWith(".roi"))
+                        .toList();
+                IntStream.range(0, entries.size()).parallel().forEach(index -> {
+                    if (!filter.test(getRoiName(entries.get(index))))
+                        return;
+                    consumer.accept(decodeRoi(zipFile, entries.get(index)), index);
+                    nRois.incrementAndGet();
+                });
+            } catch (UncheckedIOException e) {
+                logger.error("Could not decode the RoiSet {}", path, e.getCause());
+                throw e.getCause();
+            } catch (IOException e) {
+                logger.error("Could not read the RoiSet {}", path, e);
+                throw e;
+            }
+        } else {
+            try (ZipInputStream in = new ZipInputStream(new FileInputStream(path))) {
+                int index = 0;
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    String name = entry.getName();
+                    if (name.endsWith(".roi") && !filter.test(getRoiName(entry))) {
+                        index++;
+                    } else if (name.endsWith(".roi")) {
+                        long size = entry.getSize();
+                        byte[] bytes = (size >= 0 && size <= Integer.MAX_VALUE) ? in.readNBytes((int) size) : in.readAllBytes();
+                        consumer.accept(decodeRoi(bytes, name), index);
+                        nRois.incrementAndGet();
+                        index++;
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Could not read the RoiSet {}", path, e);
+                throw e;
+            }
+        }
+        if (nRois.get() == 0) {
+            logger.error("This ZIP archive does not contain '.roi' files: {}", path);
+        }
+        return nRois.get();
+    }
+
+    /**
+     * Lists the '.roi' entries of a RoiSet from its central directory, without inflating them.
+     * The position of an entry in the list is the index given by {@link #forEachRoi(File, boolean, ObjIntConsumer)}.
+     * @param path the RoiSet zip file
+     * @return the '.roi' entries, with their name, size and CRC
+     * @throws IOException if the archive can't be read
+     */
+    public static List<ZipEntry> listRoiEntries( File path ) throws IOException {
+        try (ZipFile zipFile = new ZipFile(path)) {
+            return zipFile.stream()
+                    .filter(entry -> entry.getName().endsWith(".roi"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @param entry a '.roi' entry of a RoiSet
+     * @return the name of the entry without its extension, which is the name of the region in ABBA RoiSets
+     */
+    static String getRoiName( ZipEntry entry ) {
+        String name = entry.getName();
+        return name.substring(0, name.length() - 4);
+    }
+
+    static Roi decodeRoi( ZipFile zipFile, ZipEntry entry ) {
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            long size = entry.getSize();
+            byte[] bytes = (size >= 0 && size <= Integer.MAX_VALUE) ? in.readNBytes((int) size) : in.readAllBytes();
+            return decodeRoi(bytes, entry.getName());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @throws IOException if the entry is not a valid ROI
+     */
+    private static Roi decodeRoi( byte[] bytes, String name ) throws IOException {
+        Roi roi = new RoiDecoder(bytes, name).getRoi();
+        if (roi == null)
+            throw new IOException("Could not decode the ROI " + name);
+        return roi;
+    }
 }
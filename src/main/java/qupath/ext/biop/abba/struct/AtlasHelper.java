@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Static atlas ontology helper functions
@@ -48,34 +49,73 @@ public class AtlasHelper {
         return map;
     }
 
+    /**
+     * Parsed ontologies, by absolute path of their json file
+     */
+    private static final Map<String, CachedOntology> ontologyCache = new ConcurrentHashMap<>();
+
+    private static class CachedOntology {
+        final long lastModified;
+        final long size;
+        final SerializableOntology ontology;
+
+        CachedOntology(long lastModified, long size, SerializableOntology ontology) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.ontology = ontology;
+        }
+    }
+
+    /**
+     * Opens an ontology exported by ABBA.<br>
+     * The json file is parsed only once per process, as long as its modification time and size do not change.
+     * Each call returns a new ontology object, with its own naming property, but all of them share the same
+     * node tree and id map, which should not be modified.
+     * @param path the path of the json ontology file
+     * @return the ontology, or null if the file does not exist or could not be parsed
+     */
     public static AtlasOntology openOntologyFromJsonFile(String path) {
-        File ontologyFile = new File(path);
-        if (ontologyFile.exists()) {
-            Gson gson = new Gson();
-            try {
-                FileReader fr = new FileReader(ontologyFile.getAbsoluteFile());
-                SerializableOntology ontology = gson.fromJson(new FileReader(ontologyFile.getAbsoluteFile()), SerializableOntology.class);
-                ontology.initialize();
-                fr.close();
-                return ontology;
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return null;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            } catch (Exception e) {
-                e.printStackTrace();
+        File ontologyFile = new File(path).getAbsoluteFile();
+        if (!ontologyFile.exists())
+            return null;
+        String key = ontologyFile.getPath();
+        long lastModified = ontologyFile.lastModified();
+        long size = ontologyFile.length();
+        CachedOntology cached = ontologyCache.get(key);
+        if ((cached == null) || (cached.lastModified != lastModified) || (cached.size != size)) {
+            SerializableOntology ontology = parseOntology(ontologyFile);
+            if (ontology == null)
                 return null;
-            }
-        } else return null;
+            cached = new CachedOntology(lastModified, size, ontology);
+            ontologyCache.put(key, cached);
+        }
+        return cached.ontology.shallowCopy();
+    }
+
+    /**
+     * Empties the cache of parsed ontologies, see {@link #openOntologyFromJsonFile(String)}
+     */
+    public static void clearOntologyCache() {
+        ontologyCache.clear();
+    }
+
+    private static SerializableOntology parseOntology(File ontologyFile) {
+        Gson gson = new Gson();
+        try (FileReader fr = new FileReader(ontologyFile)) {
+            SerializableOntology ontology = gson.fromJson(fr, SerializableOntology.class);
+            ontology.initialize();
+            return ontology;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     public static class SerializableOntology implements AtlasOntology{
         String name;
         String namingProperty;
         SerializableAtlasNode root;
-        transient Map<Integer, AtlasNode> idToAtlasNodeMap;
+        transient AtlasNodeIndex nodeIndex;
 
         public SerializableOntology(AtlasOntology ontology) {
             this.name = ontology.getName();
@@ -83,6 +123,20 @@ public class AtlasHelper {
             this.namingProperty = ontology.getNamingProperty();
         }
 
+        private SerializableOntology(String name, String namingProperty, SerializableAtlasNode root, AtlasNodeIndex nodeIndex) {
+            this.name = name;
+            this.namingProperty = namingProperty;
+            this.root = root;
+            this.nodeIndex = nodeIndex;
+        }
+
+        /**
+         * @return a copy of this ontology which shares its nodes and id map, but not its naming property
+         */
+        SerializableOntology shallowCopy() {
+            return new SerializableOntology(name, namingProperty, root, nodeIndex);
+        }
+
         static void setAllParents(SerializableAtlasNode node) {
             node.children.forEach(child -> {
                     child.setParent(node);
@@ -99,7 +153,7 @@ public class AtlasHelper {
         @Override
         public void initialize() throws Exception {
             setAllParents(root);
-            idToAtlasNodeMap = AtlasHelper.buildIdToAtlasNodeMap(root);
+            nodeIndex = AtlasNodeIndex.build(root);
         }
 
         @Override
@@ -119,7 +173,17 @@ public class AtlasHelper {
 
         @Override
         public AtlasNode getNodeFromId(int id) {
-            return idToAtlasNodeMap.get(id);
+            return nodeIndex.getNode(id);
+        }
+
+        @Override
+        public int parentId(int id) {
+            return nodeIndex.parentId(id);
+        }
+
+        @Override
+        public AtlasNodeIndex getNodeIndex() {
+            return nodeIndex;
         }
 
         @Override
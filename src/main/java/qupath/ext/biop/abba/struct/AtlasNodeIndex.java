@@ -0,0 +1,291 @@
+/*-
+ * #%L
+ * Repo containing a standard API for Atlases and some example ones
+ * %%
+ * Copyright (C) 2021 EPFL
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package qupath.ext.biop.abba.struct;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Immutable primitive lookup of the nodes of an ontology tree.<br>
+ * Each node gets an index, from 0 to {@link #size()} - 1, in the depth-first order of the tree
+ * (the root has index 0). Ids are mapped to indices without boxing: with a dense array when the
+ * ids span a compact range, and with an open addressing hash table otherwise (Allen ids are sparse).
+ * Indices can be used to address primitive arrays of per-region values.
+ * <p>
+ * Because of the depth-first order, the descendants of the node at index i are exactly the nodes
+ * at indices i+1 (included) to {@link #getSubtreeEndAt(int)} (excluded). This gives constant time
+ * ancestor tests and contiguous enumerations of subtrees, for instance to roll per-region values up the tree.
+ */
+public class AtlasNodeIndex {
+
+    /**
+     * Returned for an unknown id or index, and as the parent of the root
+     */
+    public static final int NONE = -1;
+
+    private final AtlasNode[] nodes;
+    private final int[] ids;
+    private final int[] parentIndices;
+    private final int[] depths;
+    private final int[] subtreeEnds;
+
+    // Dense lookup: denseIndices[id - minId]
+    private final int minId;
+    private final int[] denseIndices;
+
+    // Open addressing lookup, linear probing; hashIndices[i] == NONE for an empty bucket
+    private final int[] hashKeys;
+    private final int[] hashIndices;
+    private final int mask;
+
+    private AtlasNodeIndex(List<AtlasNode> orderedNodes, int[] parentIndices) {
+        int n = orderedNodes.size();
+        this.nodes = orderedNodes.toArray(new AtlasNode[0]);
+        this.parentIndices = parentIndices;
+        this.ids = new int[n];
+        this.depths = new int[n];
+        this.subtreeEnds = new int[n];
+        for (int i = 0; i < n; i++) {
+            depths[i] = parentIndices[i] == NONE ? 0 : depths[parentIndices[i]] + 1;
+            subtreeEnds[i] = i + 1;
+        }
+        // Children come after their parent: a reverse pass propagates the ends of the subtrees
+        for (int i = n - 1; i >= 0; i--) {
+            if (parentIndices[i] != NONE)
+                subtreeEnds[parentIndices[i]] = Math.max(subtreeEnds[parentIndices[i]], subtreeEnds[i]);
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            ids[i] = nodes[i].getId();
+            min = Math.min(min, ids[i]);
+            max = Math.max(max, ids[i]);
+        }
+        long range = n == 0 ? 0 : (long) max - min + 1;
+        if (range <= 4L * n + 1024) {
+            minId = min;
+            denseIndices = new int[(int) range];
+            Arrays.fill(denseIndices, NONE);
+            for (int i = 0; i < n; i++)
+                denseIndices[ids[i] - minId] = i;
+            hashKeys = null;
+            hashIndices = null;
+            mask = 0;
+        } else {
+            minId = 0;
+            denseIndices = null;
+            int capacity = Integer.highestOneBit(Math.max(4, n * 2 - 1)) << 1; // load factor <= 0.5
+            hashKeys = new int[capacity];
+            hashIndices = new int[capacity];
+            Arrays.fill(hashIndices, NONE);
+            mask = capacity - 1;
+            for (int i = 0; i < n; i++) {
+                int bucket = hash(ids[i]) & mask;
+                while (hashIndices[bucket] != NONE && hashKeys[bucket] != ids[i])
+                    bucket = (bucket + 1) & mask;
+                hashKeys[bucket] = ids[i];
+                hashIndices[bucket] = i;
+            }
+        }
+    }
+
+    /**
+     * Indexes all the nodes of a tree. If several nodes share an id, the last one in depth-first order wins,
+     * as in {@link AtlasHelper#buildIdToAtlasNodeMap(AtlasNode)}.
+     * @param root the root of the tree
+     * @return the index of the tree
+     */
+    public static AtlasNodeIndex build(AtlasNode root) {
+        List<AtlasNode> orderedNodes = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        // Iterative depth-first traversal, each node being pushed with the index of its parent
+        Deque<AtlasNode> nodeStack = new ArrayDeque<>();
+        Deque<Integer> parentStack = new ArrayDeque<>();
+        nodeStack.push(root);
+        parentStack.push(NONE);
+        while (!nodeStack.isEmpty()) {
+            AtlasNode node = nodeStack.pop();
+            int index = orderedNodes.size();
+            orderedNodes.add(node);
+            parents.add(parentStack.pop());
+            List<? extends AtlasNode> children = node.children();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                nodeStack.push(children.get(i));
+                parentStack.push(index);
+            }
+        }
+        int[] parentIndices = parents.stream().mapToInt(Integer::intValue).toArray();
+        return new AtlasNodeIndex(orderedNodes, parentIndices);
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the number of indexed nodes
+     */
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @param id the id of a node
+     * @return the index of the node, or {@link #NONE} if the id is unknown
+     */
+    public int indexOf(int id) {
+        if (denseIndices != null) {
+            long offset = (long) id - minId;
+            return (offset < 0 || offset >= denseIndices.length) ? NONE : denseIndices[(int) offset];
+        }
+        int bucket = hash(id) & mask;
+        int index;
+        while ((index = hashIndices[bucket]) != NONE) {
+            if (hashKeys[bucket] == id)
+                return index;
+            bucket = (bucket + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * @param id the id of a node
+     * @return the node, or null if the id is unknown
+     */
+    public AtlasNode getNode(int id) {
+        int index = indexOf(id);
+        return index == NONE ? null : nodes[index];
+    }
+
+    /**
+     * @param id the id of a node
+     * @return the id of its parent, or {@link #NONE} for the root or an unknown id
+     */
+    public int parentId(int id) {
+        int index = indexOf(id);
+        if (index == NONE)
+            return NONE;
+        int parentIndex = parentIndices[index];
+        return parentIndex == NONE ? NONE : ids[parentIndex];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the node at this index
+     */
+    public AtlasNode getNodeAt(int index) {
+        return nodes[index];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the id of the node at this index
+     */
+    public int getIdAt(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the index of its parent, or {@link #NONE} for the root
+     */
+    public int getParentIndexAt(int index) {
+        return parentIndices[index];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the depth of the node at this index, the root having a depth of 0
+     */
+    public int getDepthAt(int index) {
+        return depths[index];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the end (excluded) of the range of indices of the subtree of this node
+     */
+    public int getSubtreeEndAt(int index) {
+        return subtreeEnds[index];
+    }
+
+    /**
+     * @param id the id of a node
+     * @return the depth of the node, the root having a depth of 0, or {@link #NONE} if the id is unknown
+     */
+    public int depth(int id) {
+        int index = indexOf(id);
+        return index == NONE ? NONE : depths[index];
+    }
+
+    /**
+     * Constant time ancestor test
+     * @param ancestorId the id of the potential ancestor
+     * @param descendantId the id of the potential descendant
+     * @return true if the first node is a strict ancestor of the second one
+     */
+    public boolean isAncestorOf(int ancestorId, int descendantId) {
+        int ancestor = indexOf(ancestorId);
+        int descendant = indexOf(descendantId);
+        return (ancestor != NONE) && (descendant != NONE)
+                && (descendant > ancestor) && (descendant < subtreeEnds[ancestor]);
+    }
+
+    /**
+     * Constant time subtree test, for instance to know if a region is within the cortex
+     * @param id the id of a node
+     * @param subtreeRootId the id of the root of the subtree
+     * @return true if the node is the root of the subtree or one of its descendants
+     */
+    public boolean isInSubtree(int id, int subtreeRootId) {
+        return (id == subtreeRootId && indexOf(id) != NONE) || isAncestorOf(subtreeRootId, id);
+    }
+
+    /**
+     * @param id the id of a node
+     * @return the ids of all the descendants of the node, in depth-first order, or an empty array if the id is unknown
+     */
+    public int[] getDescendantIds(int id) {
+        int index = indexOf(id);
+        if (index == NONE)
+            return new int[0];
+        return Arrays.copyOfRange(ids, index + 1, subtreeEnds[index]);
+    }
+
+    /**
+     * @param id the id of a node
+     * @return the ids of the ancestors of the node, from its parent to the root, or an empty array if the id is unknown
+     */
+    public int[] getAncestorIds(int id) {
+        int index = indexOf(id);
+        if (index == NONE)
+            return new int[0];
+        int[] ancestors = new int[depths[index]];
+        for (int i = 0, parent = parentIndices[index]; parent != NONE; i++, parent = parentIndices[parent])
+            ancestors[i] = ids[parent];
+        return ancestors;
+    }
+}
@@ -37,8 +37,51 @@ public interface AtlasOntology {
 
 	AtlasNode getNodeFromId(int id);
 
+	/**
+	 * Returns the id of the parent of a node, without going through {@link AtlasNode} objects
+	 * for ontologies backed by an {@link AtlasNodeIndex}.
+	 * @param id the id of a node
+	 * @return the id of its parent, or {@link AtlasNodeIndex#NONE} for the root or an unknown id
+	 */
+	default int parentId(int id) {
+		AtlasNode node = getNodeFromId(id);
+		if ((node == null) || (node.parent() == null))
+			return AtlasNodeIndex.NONE;
+		return node.parent().getId();
+	}
+
+	/**
+	 * Returns a primitive index of the nodes of this ontology. Implementations should build it once,
+	 * in {@link #initialize()}; the default implementation builds a new index at each call.
+	 * @return the index of the nodes of this ontology
+	 */
+	default AtlasNodeIndex getNodeIndex() {
+		return AtlasNodeIndex.build(getRoot());
+	}
+
+	/**
+	 * Constant time ancestor test, see {@link AtlasNodeIndex#isAncestorOf(int, int)}
+	 * @param ancestorId the id of the potential ancestor
+	 * @param descendantId the id of the potential descendant
+	 * @return true if the first node is a strict ancestor of the second one
+	 */
+	default boolean isAncestorOf(int ancestorId, int descendantId) {
+		return getNodeIndex().isAncestorOf(ancestorId, descendantId);
+	}
+
 	String getNamingProperty();
 
 	void setNamingProperty(String namingProperty);
 
+	/**
+	 * Returns an immutable view of this ontology which uses another naming property.
+	 * The view shares the nodes of this ontology: it is cheap to create, and views with
+	 * different naming properties can safely be used at the same time from several threads.
+	 * @param namingProperty the naming property of the view
+	 * @return an immutable view of this ontology
+	 */
+	default AtlasOntology withNamingProperty(String namingProperty) {
+		return new AtlasOntologyView(this, namingProperty);
+	}
+
 }
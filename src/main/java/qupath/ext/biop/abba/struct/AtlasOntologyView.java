@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Repo containing a standard API for Atlases and some example ones
+ * %%
+ * Copyright (C) 2021 EPFL
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package qupath.ext.biop.abba.struct;
+
+import java.net.URL;
+
+/**
+ * Immutable view of an ontology with a fixed naming property.<br>
+ * The view shares the nodes and the id lookup of the ontology it is built from,
+ * so several views with different naming properties can be used concurrently
+ * without copying or re-parsing the ontology.
+ */
+public class AtlasOntologyView implements AtlasOntology {
+
+    private final AtlasOntology ontology;
+    private final String namingProperty;
+
+    AtlasOntologyView(AtlasOntology ontology, String namingProperty) {
+        this.ontology = ontology;
+        this.namingProperty = namingProperty;
+    }
+
+    @Override
+    public String getName() {
+        return ontology.getName();
+    }
+
+    @Override
+    public void initialize() {
+        // The underlying ontology is already initialized
+    }
+
+    @Override
+    public void setDataSource(URL dataSource) {
+        throw new UnsupportedOperationException("An ontology view is immutable");
+    }
+
+    @Override
+    public URL getDataSource() {
+        return ontology.getDataSource();
+    }
+
+    @Override
+    public AtlasNode getRoot() {
+        return ontology.getRoot();
+    }
+
+    @Override
+    public AtlasNode getNodeFromId(int id) {
+        return ontology.getNodeFromId(id);
+    }
+
+    @Override
+    public int parentId(int id) {
+        return ontology.parentId(id);
+    }
+
+    @Override
+    public AtlasNodeIndex getNodeIndex() {
+        return ontology.getNodeIndex();
+    }
+
+    @Override
+    public String getNamingProperty() {
+        return namingProperty;
+    }
+
+    @Override
+    public void setNamingProperty(String namingProperty) {
+        throw new UnsupportedOperationException("An ontology view is immutable, use withNamingProperty instead");
+    }
+
+    @Override
+    public AtlasOntology withNamingProperty(String namingProperty) {
+        return new AtlasOntologyView(ontology, namingProperty);
+    }
+}
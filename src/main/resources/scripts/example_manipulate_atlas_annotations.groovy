@@ -25,6 +25,14 @@ removeObjects(getAnnotationObjects(), false) // last argument = keep child objec
 //   * split left and right regions
 //   * overwrite the previously imported atlas annotations, if present and new and old atlas versions match
 def atlasRoot = qupath.ext.biop.abba.AtlasTools.loadWarpedAtlasAnnotations(getCurrentImageData(), "acronym", true, true);
+// On images which already contain many detections, the atlas can be inserted in bulk: the detections are
+// assigned to the new regions in one pass, and the hierarchy is updated once
+// def options = new qupath.ext.biop.abba.AtlasImportOptions().splitLeftRight(true).overwrite(true).bulkInsert(true)
+// def atlasRoot = qupath.ext.biop.abba.AtlasTools.loadWarpedAtlasAnnotations(ontology, getCurrentImageData(), getProjectEntry(), ontology.getName(), options)
+// Repeated imports of the same registration are faster with .geometryCache(true), which stores the converted regions in the entry folder
+// Lighter regions for display can be imported with .simplifyTolerance(2) (in pixels), region areas are kept at full resolution
+// To import faster, only the leaf regions can be decoded, parent regions being the union of their children:
+// .parentRegions(qupath.ext.biop.abba.AtlasImportOptions.ParentRegions.UNION) (or EMPTY if only the hierarchy is needed)
 def allRegions = atlasRoot.getDescendantObjects(null)
 
 // 4. To collect and select a subregion (here the only with the acronym ‘CTXpl’)
@@ -84,3 +92,18 @@ def objectsOtherThan = getAnnotationObjects() - myObjectsWithinAList
 
 removeObjects(objectsOtherThan, true)
 
+
+// 9. labelling the detections with the atlas region containing their centroid
+
+// The imported regions are drawn in a label image (here downsampled 8 times): each detection is then
+// assigned by a single pixel lookup, with an exact test for the detections on region borders.
+// Each detection gets the measurements "Atlas region ID" and "Atlas side" (0: not split, 1: left, 2: right),
+// and the region name in its metadata ("Atlas region")
+qupath.ext.biop.abba.AtlasTools.assignAtlasRegions(getCurrentImageData(), atlasRoot.getPathClass().getName(), getDetectionObjects(), 8) // the class of the atlas root is the ontology name
+
+// 10. counting the detections per region, rolled up through the ontology, and writing a table
+
+def ontology = qupath.ext.biop.abba.struct.AtlasHelper.openOntologyFromJsonFile(buildPathInProject(atlasRoot.getPathClass().getName() + "-Ontology.json"))
+        .withNamingProperty("acronym")
+def statistics = qupath.ext.biop.abba.AtlasTools.computeAtlasRegionStatistics(ontology, getCurrentImageData())
+new File(buildFilePath(PROJECT_BASE_DIR, getProjectEntry().getImageName() + "-regions.tsv")).withWriter { statistics.write(it) }
@@ -0,0 +1,57 @@
+package qupath.ext.biop.abba;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TestAtlasLabelMap {
+
+    private static PathObject createRegion(ROI roi, int id) {
+        PathObject region = PathObjects.createAnnotationObject(roi);
+        region.getMeasurementList().put("ID", id);
+        return region;
+    }
+
+    /**
+     * Leaf regions below parent regions imported with an empty geometry, see {@link AtlasImportOptions.ParentRegions#EMPTY}
+     */
+    @Test
+    public void test_emptyParentRegions() {
+        PathObject left = createRegion(ROIs.createRectangleROI(0, 0, 50, 100, ImagePlane.getDefaultPlane()), 2);
+        PathObject right = createRegion(ROIs.createRectangleROI(50, 0, 50, 100, ImagePlane.getDefaultPlane()), 3);
+        PathObject parent = createRegion(ROIs.createEmptyROI(), 1);
+        parent.addChildObjects(List.of(left, right));
+        PathObject root = createRegion(ROIs.createEmptyROI(), 0);
+        root.addChildObject(parent);
+        PathObject atlasRoot = PathObjects.createAnnotationObject(ROIs.createEmptyROI());
+        atlasRoot.addChildObject(root);
+
+        AtlasLabelMap labelMap = AtlasLabelMap.build(atlasRoot, 100, 100, 8);
+        assertEquals(List.of(root, parent, left, right), labelMap.getRegions());
+
+        // Inside the leaf regions, from the raster
+        assertSame(left, labelMap.getRegion(20, 50));
+        assertSame(right, labelMap.getRegion(80, 50));
+        // Along the shared border, with the exact test which crosses the empty parent regions
+        assertSame(left, labelMap.getRegion(48, 50));
+        assertSame(right, labelMap.getRegion(52, 50));
+        assertSame(left, labelMap.getRegion(1, 1));
+        // Outside of the atlas
+        assertNull(labelMap.getRegion(150, 50));
+
+        PathObject[] regions = labelMap.getRegions(List.of(
+                PathObjects.createDetectionObject(ROIs.createPointsROI(47, 30, ImagePlane.getDefaultPlane())),
+                PathObjects.createDetectionObject(ROIs.createPointsROI(53, 70, ImagePlane.getDefaultPlane()))));
+        assertSame(left, regions[0]);
+        assertSame(right, regions[1]);
+    }
+}